@@ -19,6 +19,8 @@
  */
 package org.neo4j.gis.spatial;
 
+import java.util.Arrays;
+
 import org.apache.commons.lang.ArrayUtils;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.graphdb.Node;
@@ -41,8 +43,12 @@ public abstract class AbstractGeometryEncoder implements GeometryEncoder, Consta
 		this.layer = layer;
 	}
 
+	/**
+	 * Store the envelope as xmin, ymin, xmax, ymax, or with all the minimums followed by all the maximums for an
+	 * envelope with more than two dimensions, which is the layout of the bounding boxes of the RTreeIndex.
+	 */
 	public void encodeEnvelope(Envelope mbb, PropertyContainer container) {
-		container.setProperty(bboxProperty, new double[] { mbb.getMinX(), mbb.getMinY(), mbb.getMaxX(), mbb.getMaxY() });
+		container.setProperty(bboxProperty, mbb.toBBox());
 	}
 
 	@Override
@@ -67,8 +73,31 @@ public abstract class AbstractGeometryEncoder implements GeometryEncoder, Consta
 	        bbox = (double[]) bboxProp;
 	    }
 		
-		// Envelope parameters: xmin, xmax, ymin, ymax
-		return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+		return Envelope.fromBBox(bbox);
+	}
+
+	@Override
+	public boolean decodeBBox(PropertyContainer container, double[] bbox) {
+		Object bboxProp = container.getProperty(bboxProperty);
+		if (bboxProp instanceof Double[]) {
+			Double[] value = (Double[]) bboxProp;
+			if (value.length != bbox.length) {
+				return false;
+			}
+			for (int i = 0; i < bbox.length; i++) {
+				bbox[i] = value[i];
+			}
+		} else if (bboxProp instanceof double[]) {
+			double[] value = (double[]) bboxProp;
+			if (value.length != bbox.length) {
+				return false;
+			}
+			System.arraycopy(value, 0, bbox, 0, bbox.length);
+		} else {
+			// same as decodeEnvelope, which falls back to an empty envelope at the origin
+			Arrays.fill(bbox, 0);
+		}
+		return true;
 	}
 
 	
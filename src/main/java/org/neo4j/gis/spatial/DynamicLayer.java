@@ -81,6 +81,7 @@ public class DynamicLayer extends EditableLayerImpl {
 			synchronized (this) {
 				DynamicLayerConfig config = (DynamicLayerConfig) layer;
 				layers = null; // force recalculation of layers cache
+				LayerRegistry.forDatabase(getDatabase()).invalidate();
 				try ( Transaction tx = getDatabase().beginTx() )
 				{
 					config.configNode.getSingleRelationship( SpatialRelationshipTypes.LAYER_CONFIG, Direction.INCOMING ).delete();
@@ -177,6 +178,7 @@ public class DynamicLayer extends EditableLayerImpl {
 		} else synchronized (this) {
 			DynamicLayerConfig config = new DynamicLayerConfig(this, name, type, query);
 			layers = null;	// force recalculation of layers cache
+			LayerRegistry.forDatabase(getDatabase()).invalidate();
 			return config;
 		}
 	}
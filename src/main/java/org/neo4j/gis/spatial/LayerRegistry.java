@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.gis.spatial.utilities.LayerUtilities;
+import org.neo4j.gis.spatial.utilities.ShutdownHandler;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Database wide registry of the layers constructed from layer nodes, so that looking up a layer does not scan the
+ * layers of the spatial root nor build the encoder, index and CRS of the layer again. It is shared by all
+ * SpatialDatabaseService instances on the same database.
+ * <p>
+ * A transaction event handler clears the registry when a commit creates or deletes LAYER or LAYER_CONFIG
+ * relationships, deletes or changes a registered node, or changes one of the properties layers are built from on a
+ * layer node, and when a transaction is rolled back, so layers built from uncommitted state never outlive the
+ * transaction that wrote it. Other commits, like those adding geometries, leave the registry alone.
+ * <p>
+ * Layers keeping state between calls, like the last geometry of an OrderedEditableLayer, are not shared, since
+ * that state belongs to the transaction using the layer. The registry of a database is dropped when it shuts down,
+ * as the registered layers refer to the database and would otherwise keep it reachable.
+ */
+class LayerRegistry extends TransactionEventHandler.Adapter<Boolean> {
+
+	private static final Map<GraphDatabaseService, LayerRegistry> registries = new WeakHashMap<>();
+
+	/**
+	 * The properties the layers are built from. A commit changing them on a layer node clears the registry, even if
+	 * that node was not registered yet when the commit started.
+	 */
+	private static final Set<String> LAYER_PROPERTIES = new HashSet<>(Arrays.asList(Constants.PROP_LAYER,
+			Constants.PROP_LAYER_CLASS, Constants.PROP_LAYERNODEEXTRAPROPS, Constants.PROP_CRS,
+			Constants.PROP_GEOMENCODER, Constants.PROP_GEOMENCODER_CONFIG, Constants.PROP_INDEX_CLASS,
+			Constants.PROP_INDEX_CONFIG, Constants.PROP_QUERY));
+
+	private static class Entry {
+		private final long nodeId;
+		private final Layer layer;
+
+		private Entry(long nodeId, Layer layer) {
+			this.nodeId = nodeId;
+			this.layer = layer;
+		}
+	}
+
+	private final Map<Long, Layer> layersByNode = new ConcurrentHashMap<>();
+	private final Map<String, Entry> layersByName = new ConcurrentHashMap<>();
+	private final Set<Long> nodeIds = ConcurrentHashMap.newKeySet();
+	private long generation;
+
+	static LayerRegistry forDatabase(GraphDatabaseService database) {
+		synchronized (registries) {
+			LayerRegistry registry = registries.get(database);
+			if (registry == null) {
+				registry = new LayerRegistry();
+				database.registerTransactionEventHandler(registry);
+				ShutdownHandler.onShutdown(database, () -> {
+					synchronized (registries) {
+						registries.remove(database);
+					}
+				});
+				registries.put(database, registry);
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * The state of the registry, to be read before the layer nodes are read, so that layers built from them are only
+	 * registered if nothing was invalidated in the meantime.
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Find the layer registered under this name. Must be called in a transaction, in which the node the layer was
+	 * built from must still be a layer of that name.
+	 *
+	 * @return the registered layer, or null if it needs to be looked up in the graph
+	 */
+	Layer getLayer(GraphDatabaseService database, String name) {
+		Entry entry = layersByName.get(name);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			if (name.equals(database.getNodeById(entry.nodeId).getProperty(Constants.PROP_LAYER, null))) {
+				return entry.layer;
+			}
+		} catch (NotFoundException e) {
+			// deleted, or created by a transaction that has not committed yet
+		}
+		layersByName.remove(name, entry);
+		return null;
+	}
+
+	/**
+	 * The layer built from this layer node, constructing it on first use. Must be called in a transaction.
+	 */
+	Layer getLayer(SpatialDatabaseService spatialDatabase, Node layerNode) {
+		Layer layer = layersByNode.get(layerNode.getId());
+		if (layer == null) {
+			long seen = generation();
+			layer = LayerUtilities.makeLayerFromNode(spatialDatabase, layerNode);
+			synchronized (this) {
+				if (seen == generation && isShareable(layer)) {
+					Layer registered = layersByNode.putIfAbsent(layerNode.getId(), layer);
+					if (registered != null) {
+						return registered;
+					}
+					nodeIds.add(layerNode.getId());
+					for (Relationship rel : layerNode.getRelationships(SpatialRelationshipTypes.LAYER_CONFIG, Direction.OUTGOING)) {
+						nodeIds.add(rel.getEndNode().getId());
+					}
+				}
+			}
+		}
+		return layer;
+	}
+
+	/**
+	 * Register the layer found under this name, built from the given layer or dynamic layer config node.
+	 */
+	synchronized void register(String name, Node node, Layer layer, long seen) {
+		if (seen == generation && isShareable(layer)) {
+			nodeIds.add(node.getId());
+			layersByName.put(name, new Entry(node.getId(), layer));
+		}
+	}
+
+	synchronized void invalidate() {
+		generation++;
+		layersByName.clear();
+		layersByNode.clear();
+		nodeIds.clear();
+	}
+
+	@Override
+	public Boolean beforeCommit(TransactionData data) {
+		for (Relationship rel : data.createdRelationships()) {
+			if (isLayerRelationship(rel)) {
+				return true;
+			}
+		}
+		for (Relationship rel : data.deletedRelationships()) {
+			if (isLayerRelationship(rel)) {
+				return true;
+			}
+		}
+		for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+			if (isLayerProperty(data, entry)) {
+				return true;
+			}
+		}
+		for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+			if (isLayerProperty(data, entry)) {
+				return true;
+			}
+		}
+		if (!nodeIds.isEmpty()) {
+			for (Node node : data.deletedNodes()) {
+				if (nodeIds.contains(node.getId())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void afterCommit(TransactionData data, Boolean changed) {
+		if (changed == null || changed) {
+			invalidate();
+		}
+	}
+
+	@Override
+	public void afterRollback(TransactionData data, Boolean changed) {
+		invalidate();
+	}
+
+	private static boolean isShareable(Layer layer) {
+		return !(layer instanceof OrderedEditableLayer);
+	}
+
+	private static boolean isLayerRelationship(Relationship rel) {
+		return rel.isType(SpatialRelationshipTypes.LAYER) || rel.isType(SpatialRelationshipTypes.LAYER_CONFIG);
+	}
+
+	/**
+	 * Whether the property belongs to a registered node, or is one of the properties layers are built from on a
+	 * layer node. A deleted layer node also loses its LAYER relationship, which is checked on its own.
+	 */
+	private boolean isLayerProperty(TransactionData data, PropertyEntry<Node> entry) {
+		Node node = entry.entity();
+		if (nodeIds.contains(node.getId())) {
+			return true;
+		}
+		return LAYER_PROPERTIES.contains(entry.key()) && !data.isDeleted(node)
+				&& node.hasRelationship(Direction.INCOMING, SpatialRelationshipTypes.LAYER);
+	}
+}
@@ -30,6 +30,7 @@ import org.neo4j.gis.spatial.utilities.LayerUtilities;
 import org.neo4j.gis.spatial.utilities.ReferenceNodes;
 import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.encoders.NativePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
 import org.neo4j.graphdb.*;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -95,7 +96,7 @@ public class SpatialDatabaseService implements Constants {
 		try (Transaction tx = getDatabase().beginTx()) {
 			for (Relationship relationship : getSpatialRoot().getRelationships(SpatialRelationshipTypes.LAYER,
 					Direction.OUTGOING)) {
-				Layer layer = LayerUtilities.makeLayerFromNode(this, relationship.getEndNode());
+				Layer layer = getLayerRegistry().getLayer(this, relationship.getEndNode());
 				if (layer instanceof DynamicLayer) {
 					names.addAll(((DynamicLayer) layer).getLayerNames());
 				} else {
@@ -108,17 +109,31 @@ public class SpatialDatabaseService implements Constants {
 		return names.toArray(new String[names.size()]);
 	}
 	
+	/**
+	 * Find the layer of this name, including the layers of dynamic layers. Layers are taken from the registry shared
+	 * by all instances on this database, so repeated lookups neither scan the layers nor construct them again.
+	 */
 	public Layer getLayer(String name) {
+        LayerRegistry registry = getLayerRegistry();
         try (Transaction tx = getDatabase().beginTx()) {
-            for (Relationship relationship : getSpatialRoot().getRelationships(SpatialRelationshipTypes.LAYER, Direction.OUTGOING)) {
-                Node node = relationship.getEndNode();
-                if (name.equals(node.getProperty(PROP_LAYER))) {
-                    Layer layer = LayerUtilities.makeLayerFromNode(this, node);
-                    tx.success();
-                    return layer;
+            Layer layer = registry.getLayer(getDatabase(), name);
+            if (layer == null) {
+                long seen = registry.generation();
+                for (Relationship relationship : getSpatialRoot().getRelationships(SpatialRelationshipTypes.LAYER, Direction.OUTGOING)) {
+                    Node node = relationship.getEndNode();
+                    if (name.equals(node.getProperty(PROP_LAYER))) {
+                        layer = registry.getLayer(this, node);
+                        registry.register(name, node, layer, seen);
+                        break;
+                    }
+                }
+                if (layer == null) {
+                    layer = getDynamicLayer(name);
+                    if (layer instanceof DynamicLayerConfig) {
+                        registry.register(name, ((DynamicLayerConfig) layer).configNode, layer, seen);
+                    }
                 }
             }
-            Layer layer = getDynamicLayer(name);
             tx.success();
             return layer;
         }
@@ -129,9 +144,9 @@ public class SpatialDatabaseService implements Constants {
 		for (Relationship relationship : getSpatialRoot().getRelationships(SpatialRelationshipTypes.LAYER, Direction.OUTGOING)) {
 			Node node = relationship.getEndNode();
 			if (!node.getProperty(PROP_LAYER_CLASS, "").toString().startsWith("DefaultLayer")) {
-				Layer layer = LayerUtilities.makeLayerFromNode(this, node);
+				Layer layer = getLayerRegistry().getLayer(this, node);
 				if (layer instanceof DynamicLayer) {
-					dynamicLayers.add((DynamicLayer) LayerUtilities.makeLayerFromNode(this, node));
+					dynamicLayers.add((DynamicLayer) layer);
 				}
 			}
 		}
@@ -157,6 +172,8 @@ public class SpatialDatabaseService implements Constants {
 			try (Transaction tx = database.beginTx()) {
 				Node node = layer.getLayerNode();
 				node.setProperty(PROP_LAYER_CLASS, DynamicLayer.class.getCanonicalName());
+				// the registry would otherwise hand out the old layer class until this transaction commits
+				getLayerRegistry().invalidate();
 				tx.success();
 				return (DynamicLayer) LayerUtilities.makeLayerFromNode(this, node);
 			}
@@ -298,6 +315,23 @@ public class SpatialDatabaseService implements Constants {
                 makeEncoderConfig(xybProperties), org.geotools.referencing.crs.DefaultGeographicCRS.WGS84);
     }
 
+    /**
+     * Create a point layer storing its points in a native Neo4j point property, indexed by the schema index of the
+     * database through a label of the layer. The schema index is created first, in a transaction of its own, so this
+     * must be called outside of a transaction unless the index exists already, see LayerNativePointIndex.
+     *
+     * @param locationProperty the point property, 'location' if null
+     * @param crsName the Neo4j name of the coordinate reference system of the points, 'wgs-84' if null
+     */
+    public SimplePointLayer createNativePointLayer(String name, String locationProperty, String crsName) {
+        if (locationProperty == null) locationProperty = NativePointEncoder.DEFAULT_LOCATION;
+        if (crsName == null) crsName = org.neo4j.values.storable.CoordinateReferenceSystem.WGS84.getName();
+        CoordinateReferenceSystem crs = org.neo4j.values.storable.CoordinateReferenceSystem.byName(crsName).isGeographic() ? DefaultGeographicCRS.WGS84 : null;
+        LayerNativePointIndex.createSchemaIndex(database, name, locationProperty);
+        return (SimplePointLayer) createLayer(name, NativePointEncoder.class, SimplePointLayer.class, LayerNativePointIndex.class,
+                makeEncoderConfig(locationProperty, crsName), crs);
+    }
+
     public String makeEncoderConfig(String... args) {
         StringBuilder sb = new StringBuilder();
         if(args != null) {
@@ -349,15 +383,16 @@ public class SpatialDatabaseService implements Constants {
 		}
 	}
 
+    /**
+     * Delete the layer and its index. Called outside of a transaction, large indexes are deleted in several
+     * transactions, and if that is interrupted, deleting the layer again finishes it.
+     */
     public void deleteLayer(String name, Listener monitor) {
         Layer layer = getLayer(name);
         if (layer == null)
             throw new SpatialDatabaseException("Layer " + name + " does not exist");
 
-        try (Transaction tx = database.beginTx()) {
-            layer.delete(monitor);
-            tx.success();
-        }
+        layer.delete(monitor);
     }
 	
 	public GraphDatabaseService getDatabase() {
@@ -365,9 +400,17 @@ public class SpatialDatabaseService implements Constants {
 	}
 	
 	
+	private LayerRegistry getLayerRegistry() {
+		if (layerRegistry == null) {
+			layerRegistry = LayerRegistry.forDatabase(database);
+		}
+		return layerRegistry;
+	}
+
 	// Attributes
 	
 	private GraphDatabaseService database;
+	private LayerRegistry layerRegistry;
 
 	@SuppressWarnings("unchecked")
 	public static int convertGeometryNameToType(String geometryName) {
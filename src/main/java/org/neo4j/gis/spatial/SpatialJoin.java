@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.geotools.referencing.CRS;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
+import org.neo4j.graphdb.Node;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * Joins the geometries of two layers indexed with an RTree on a spatial predicate. The candidate pairs come from a
+ * synchronized traversal of the two trees (see RTreeIndex.joinCandidates) and are refined with the geometry of the
+ * left layer prepared for each run of consecutive candidates sharing it, so a geometry overlapping several leaves
+ * of the right index may be prepared more than once. Both layers must use the same coordinate reference system,
+ * a layer without one is assumed to match the other.
+ */
+public class SpatialJoin {
+
+	public enum Predicate {
+		INTERSECTS, CONTAINS, WITHIN, COVERS, COVERED_BY, OVERLAPS, TOUCHES, CROSSES;
+
+		/**
+		 * Find a predicate by name, ignoring case and underscores, so that both "coveredBy" and "COVERED_BY" work.
+		 */
+		public static Predicate fromName(String name) {
+			String normalized = name.replace("_", "");
+			for (Predicate predicate : values()) {
+				if (predicate.name().replace("_", "").equalsIgnoreCase(normalized)) {
+					return predicate;
+				}
+			}
+			throw new IllegalArgumentException("Unknown spatial join predicate: " + name);
+		}
+
+		boolean matches(PreparedGeometry left, Geometry right) {
+			switch (this) {
+				case INTERSECTS:
+					return left.intersects(right);
+				case CONTAINS:
+					return left.contains(right);
+				case WITHIN:
+					return left.within(right);
+				case COVERS:
+					return left.covers(right);
+				case COVERED_BY:
+					return left.coveredBy(right);
+				case OVERLAPS:
+					return left.overlaps(right);
+				case TOUCHES:
+					return left.touches(right);
+				case CROSSES:
+					return left.crosses(right);
+				default:
+					throw new IllegalStateException("Unsupported spatial join predicate: " + this);
+			}
+		}
+	}
+
+	public static class Match {
+		public final Node left;
+		public final Node right;
+
+		public Match(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private final Layer left;
+	private final Layer right;
+	private final Predicate predicate;
+
+	public SpatialJoin(Layer left, Layer right, Predicate predicate) {
+		this.left = left;
+		this.right = right;
+		this.predicate = predicate;
+		for (Layer layer : new Layer[]{left, right}) {
+			if (!(layer.getIndex() instanceof RTreeIndex)) {
+				throw new IllegalArgumentException("Layer '" + layer.getName() + "' does not have an RTree index");
+			}
+		}
+		CoordinateReferenceSystem leftCrs = left.getCoordinateReferenceSystem();
+		CoordinateReferenceSystem rightCrs = right.getCoordinateReferenceSystem();
+		if (leftCrs != null && rightCrs != null && !CRS.equalsIgnoreMetadata(leftCrs, rightCrs)) {
+			throw new IllegalArgumentException("Cannot join layers '" + left.getName() + "' and '" + right.getName() +
+					"' with different coordinate reference systems");
+		}
+	}
+
+	/**
+	 * All pairs of geometry nodes, one of each layer, for which the predicate holds with the left geometry as the
+	 * subject, for example left contains right. Must be consumed in a transaction.
+	 */
+	public Iterator<Match> iterator() {
+		Iterator<RTreeIndex.NodePair> candidates = ((RTreeIndex) left.getIndex()).joinCandidates((RTreeIndex) right.getIndex());
+		return new Iterator<Match>() {
+			private Node preparedNode;
+			private PreparedGeometry prepared;
+			private Match next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && candidates.hasNext()) {
+					RTreeIndex.NodePair candidate = candidates.next();
+					if (!candidate.left.equals(preparedNode)) {
+						preparedNode = candidate.left;
+						prepared = PreparedGeometryFactory.prepare(left.getGeometryEncoder().decodeGeometry(candidate.left));
+					}
+					Geometry rightGeometry = right.getGeometryEncoder().decodeGeometry(candidate.right);
+					if (predicate.matches(prepared, rightGeometry)) {
+						next = new Match(candidate.left, candidate.right);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Match next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Match match = next;
+				next = null;
+				return match;
+			}
+		};
+	}
+
+	public Stream<Match> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+}
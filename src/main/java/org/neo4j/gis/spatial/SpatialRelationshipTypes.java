@@ -26,5 +26,5 @@ import org.neo4j.graphdb.RelationshipType;
  * @author Davide Savazzi
  */
 public enum SpatialRelationshipTypes implements RelationshipType {
-	LAYER, NETWORK, SPATIAL, LAYERS, DATASETS, LAYER_CONFIG, DATASET, PROPERTY_MAPPING
+	LAYER, NETWORK, SPATIAL, LAYERS, DATASETS, LAYER_CONFIG, DATASET, PROPERTY_MAPPING, INDEX_METADATA
 }
\ No newline at end of file
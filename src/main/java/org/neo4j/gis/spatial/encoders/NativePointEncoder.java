@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.encoders;
+
+import java.util.List;
+
+import org.neo4j.gis.spatial.AbstractGeometryEncoder;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.spatial.Point;
+import org.neo4j.values.storable.CoordinateReferenceSystem;
+import org.neo4j.values.storable.Values;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Encoder that stores point geometries as a single native Neo4j point property, which can be indexed by the schema
+ * index of the database, as done by the LayerNativePointIndex. The point is its own bounding box, so no bbox
+ * property is written.
+ */
+public class NativePointEncoder extends AbstractGeometryEncoder implements Configurable {
+    public static final String DEFAULT_LOCATION = "location";
+    protected GeometryFactory geometryFactory;
+    protected String locationProperty = DEFAULT_LOCATION;
+    protected CoordinateReferenceSystem crs = CoordinateReferenceSystem.WGS84;
+
+    protected GeometryFactory getGeometryFactory() {
+        if (geometryFactory == null) geometryFactory = new GeometryFactory();
+        return geometryFactory;
+    }
+
+    public String getLocationProperty() {
+        return locationProperty;
+    }
+
+    /**
+     * The coordinate reference system of the stored points, one of the two dimensional ones supported by Neo4j.
+     */
+    public CoordinateReferenceSystem getCrs() {
+        return crs;
+    }
+
+    @Override
+    public void encodeEnvelope(Envelope mbb, PropertyContainer container) {
+        // the point property is the bounding box
+    }
+
+    @Override
+    protected void encodeGeometryShape(Geometry geometry, PropertyContainer container) {
+        Coordinate[] coords = geometry.getCoordinates();
+        container.setProperty(locationProperty, Values.pointValue(crs, coords[0].x, coords[0].y));
+    }
+
+    @Override
+    public Geometry decodeGeometry(PropertyContainer container) {
+        double[] coordinate = decodeCoordinate(container);
+        return getGeometryFactory().createPoint(new Coordinate(coordinate[0], coordinate[1]));
+    }
+
+    @Override
+    public Envelope decodeEnvelope(PropertyContainer container) {
+        double[] coordinate = decodeCoordinate(container);
+        return new Envelope(coordinate[0], coordinate[0], coordinate[1], coordinate[1]);
+    }
+
+    @Override
+    public boolean decodeBBox(PropertyContainer container, double[] bbox) {
+        if (bbox.length != 4) {
+            return false;
+        }
+        double[] coordinate = decodeCoordinate(container);
+        bbox[0] = bbox[2] = coordinate[0];
+        bbox[1] = bbox[3] = coordinate[1];
+        return true;
+    }
+
+    private double[] decodeCoordinate(PropertyContainer container) {
+        List<Double> coordinate = ((Point) container.getProperty(locationProperty)).getCoordinate().getCoordinate();
+        return new double[]{coordinate.get(0), coordinate.get(1)};
+    }
+
+    @Override
+    public String getConfiguration() {
+        return locationProperty + ":" + crs.getName();
+    }
+
+    @Override
+    public void setConfiguration(String configuration) {
+        if (configuration != null && configuration.trim().length() > 0) {
+            String[] fields = configuration.split(":");
+            if (fields.length > 0) locationProperty = fields[0];
+            if (fields.length > 1) {
+                CoordinateReferenceSystem crs = CoordinateReferenceSystem.byName(fields[1]);
+                if (crs.getDimension() != 2) {
+                    throw new IllegalArgumentException("NativePointEncoder only supports two dimensional points, not " + crs.getName());
+                }
+                this.crs = crs;
+            }
+        }
+    }
+
+    @Override
+    public String getSignature() {
+        return "NativePointEncoder(location='" + locationProperty + "', crs='" + crs.getName() + "')";
+    }
+}
@@ -68,6 +68,18 @@ public class SimplePointEncoder extends AbstractGeometryEncoder implements
         return getGeometryFactory().createPoint( coordinate );
     }
     
+    /**
+     * The bounding box of a point is the point itself, read straight from the x/y properties.
+     */
+    @Override
+    public boolean decodeBBox( PropertyContainer container, double[] bbox )
+    {
+        if ( bbox.length != 4 ) return false;
+        bbox[0] = bbox[2] = ( (Number) container.getProperty( xProperty ) ).doubleValue();
+        bbox[1] = bbox[3] = ( (Number) container.getProperty( yProperty ) ).doubleValue();
+        return true;
+    }
+
     @Override
     public String getConfiguration()
     {
@@ -49,6 +49,12 @@ public class SearchIntersectWindow extends AbstractSearchEnvelopeIntersection {
 
 	@Override
 	protected boolean onEnvelopeIntersection(Node geomNode, org.neo4j.gis.spatial.rtree.Envelope geomEnvelope) {
+		return onBBoxIntersection(geomNode, null);
+	}
+
+	@Override
+	protected boolean onBBoxIntersection(Node geomNode, double[] bbox) {
+		// the envelope test has been done, the rest only needs the geometry
 		Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
 		// The next line just calls the method that is causing exceptions on OSM data for testing
 		// TODO: Remove when OSM is working properly
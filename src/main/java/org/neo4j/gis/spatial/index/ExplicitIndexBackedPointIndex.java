@@ -19,7 +19,10 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SpatialRelationshipTypes;
 import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
@@ -31,16 +34,33 @@ import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-
+import java.util.stream.IntStream;
+
+/**
+ * Point index storing a value derived from each point in an explicit index of the layer. The number of indexed
+ * points and a bounding box that grows with every point added are kept on a metadata node of the layer, changed in
+ * the same transaction as the explicit index, so count(), isEmpty() and getBoundingBox() do not need to look at the
+ * index. Each node is also indexed by its id, so membership does not depend on where the node is now, which keeps the
+ * count right when a node that moved since it was indexed is added again or removed.
+ */
 public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexReader, SpatialIndexWriter {
 
+    private static final String PROP_TOTAL_GEOMETRY_COUNT = "totalGeometryCount";
+    private static final String PROP_BBOX = "bbox";
+    private static final String KEY_NODE_ID = "nodeId";
+    private static final String PROP_NODE_IDS_INDEXED = "nodeIdsIndexed";
+    private static final int DEFAULT_BATCH_SIZE = 10000;
+
     protected Layer layer;
     private Index<Node> index;
     private GraphDatabaseService graph;
+    private Node metadataNode;
     private ExplicitIndexBackedMonitor monitor = new ExplicitIndexBackedMonitor();
 
     protected abstract String indexTypeName();
@@ -52,10 +72,122 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
         graph = layer.getSpatialDatabase().getDatabase();
         try (Transaction tx = graph.beginTx()) {
             index = graph.index().forNodes(indexName);
+            getMetadataNode();
+            tx.success();
+        }
+    }
+
+    private Node getMetadataNode() {
+        if (metadataNode == null) {
+            Node layerNode = layer.getLayerNode();
+            Relationship metadataRelationship = layerNode.getSingleRelationship(SpatialRelationshipTypes.INDEX_METADATA, Direction.OUTGOING);
+            if (metadataRelationship == null) {
+                metadataNode = graph.createNode();
+                layerNode.createRelationshipTo(metadataNode, SpatialRelationshipTypes.INDEX_METADATA);
+                // the index may have been filled before the metadata was kept
+                recount();
+            } else {
+                metadataNode = metadataRelationship.getEndNode();
+                if (!metadataNode.hasProperty(PROP_NODE_IDS_INDEXED)) {
+                    // kept before it was known whether every entry has its node id, find out once
+                    metadataNode.setProperty(PROP_NODE_IDS_INDEXED, countEntries(KEY_NODE_ID) == countEntries(indexTypeName()));
+                }
+            }
+        }
+        return metadataNode;
+    }
+
+    private int countEntries(String key) {
+        IndexHits<Node> hits = index.query(key, "*");
+        try {
+            return hits.size();
+        } finally {
+            hits.close();
+        }
+    }
+
+    /**
+     * Whether every node in the index can be found by its id, which is not the case for nodes indexed before the id
+     * was added to the index.
+     */
+    private boolean hasNodeIds() {
+        return (Boolean) getMetadataNode().getProperty(PROP_NODE_IDS_INDEXED, false);
+    }
+
+    private int getStoredCount() {
+        return (Integer) getMetadataNode().getProperty(PROP_TOTAL_GEOMETRY_COUNT, 0);
+    }
+
+    private void adjustCount(int delta) {
+        if (delta == 0) {
+            return;
+        }
+        try (Transaction tx = graph.beginTx()) {
+            // lock before reading, or concurrent transactions overwrite each other's counts
+            tx.acquireWriteLock(getMetadataNode());
+            int count = getStoredCount() + delta;
+            getMetadataNode().setProperty(PROP_TOTAL_GEOMETRY_COUNT, count);
+            if (count <= 0) {
+                getMetadataNode().removeProperty(PROP_BBOX);
+            }
             tx.success();
         }
     }
 
+    private void expandBoundingBox(Envelope envelope) {
+        try (Transaction tx = graph.beginTx()) {
+            Node metadata = getMetadataNode();
+            tx.acquireWriteLock(metadata);
+            double[] bbox = (double[]) metadata.getProperty(PROP_BBOX, null);
+            if (bbox == null) {
+                metadata.setProperty(PROP_BBOX, envelope.toBBox());
+            } else {
+                Envelope expanded = Envelope.fromBBox(bbox);
+                if (!expanded.contains(envelope)) {
+                    expanded.expandToInclude(envelope);
+                    metadata.setProperty(PROP_BBOX, expanded.toBBox());
+                }
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Count the points in the explicit index and compute their bounding box, and store them on the metadata node.
+     * This repairs the metadata if it is ever wrong, and is done once for indexes filled before it was kept.
+     *
+     * @return the number of points in the index
+     */
+    public int recount() {
+        try (Transaction tx = graph.beginTx()) {
+            int count = 0;
+            Envelope bbox = null;
+            IndexHits<Node> hits = index.query(indexTypeName(), "*");
+            try {
+                for (Node geomNode : hits) {
+                    Envelope envelope = getEnvelopeDecoder().decodeEnvelope(geomNode);
+                    if (bbox == null) {
+                        bbox = envelope;
+                    } else {
+                        bbox.expandToInclude(envelope);
+                    }
+                    count++;
+                }
+            } finally {
+                hits.close();
+            }
+            getMetadataNode().setProperty(PROP_TOTAL_GEOMETRY_COUNT, count);
+            getMetadataNode().setProperty(PROP_NODE_IDS_INDEXED, countEntries(KEY_NODE_ID) == count);
+            if (bbox == null) {
+                getMetadataNode().removeProperty(PROP_BBOX);
+            } else {
+                getMetadataNode().setProperty(PROP_BBOX, bbox.toBBox());
+            }
+            tx.success();
+            return count;
+        }
+    }
+
     @Override
     public Layer getLayer() {
         return layer;
@@ -68,15 +200,184 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public void add(Node geomNode) {
-        index.add(geomNode, indexTypeName(), getIndexValueFor(geomNode));
+        prepareAdd();
+        double[] bbox = new double[4];
+        E value = getIndexValueFor(decodePoint(geomNode, bbox));
+        if (!addToIndex(geomNode, value)) {
+            adjustCount(1);
+        }
+        expandBoundingBox(Envelope.fromBBox(bbox));
+    }
+
+    /**
+     * Index the node with the value, replacing the entry of a node that was indexed before, maybe somewhere else.
+     *
+     * @return whether the node was indexed before
+     */
+    private boolean addToIndex(Node geomNode, E value) {
+        boolean indexed = isIndexed(geomNode, value);
+        if (indexed) {
+            index.remove(geomNode);
+        }
+        index.add(geomNode, indexTypeName(), toIndexValue(value));
+        index.add(geomNode, KEY_NODE_ID, geomNode.getId());
+        return indexed;
+    }
+
+    /**
+     * Called in the transaction of the caller before nodes are added, for anything that needs to be ready before
+     * index values are computed on other threads.
+     */
+    protected void prepareAdd() {
+    }
+
+    protected E getIndexValueFor(Node geomNode) {
+        return getIndexValueFor(decodePoint(geomNode, new double[4]));
+    }
+
+    /**
+     * The index value for the point. It must not read the graph, as it is computed on other threads when adding
+     * several nodes at once.
+     */
+    protected abstract E getIndexValueFor(double[] point);
+
+    /**
+     * Read the bounding box of the geometry node into bbox, and return the point to index: the bounding box itself
+     * for point geometries, which avoids building the JTS geometry, and otherwise the centroid of the geometry.
+     */
+    protected double[] decodePoint(Node geomNode, double[] bbox) {
+        EnvelopeDecoder decoder = getEnvelopeDecoder();
+        if (decoder.decodeBBox(geomNode, bbox)) {
+            if (bbox[0] == bbox[2] && bbox[1] == bbox[3]) {
+                return new double[]{bbox[0], bbox[1]};
+            }
+        } else {
+            Envelope envelope = decoder.decodeEnvelope(geomNode);
+            bbox[0] = envelope.getMinX();
+            bbox[1] = envelope.getMinY();
+            bbox[2] = envelope.getMaxX();
+            bbox[3] = envelope.getMaxY();
+        }
+        // Other code is ensuring only point layers use this, but just in case we encode the centroid
+        com.vividsolutions.jts.geom.Point centroid = layer.getGeometryEncoder().decodeGeometry(geomNode).getCentroid();
+        return new double[]{centroid.getX(), centroid.getY()};
+    }
+
+    /**
+     * The object added to the explicit index for the index value, such as a ValueContext for values that should be
+     * indexed as numbers.
+     */
+    protected Object toIndexValue(E value) {
+        return value;
+    }
+
+    /**
+     * The query finding the index entries with exactly this value.
+     */
+    protected Object exactQueryFor(E value) {
+        return new TermQuery(new Term(indexTypeName(), String.valueOf(value)));
+    }
+
+    private boolean isIndexed(Node geomNode) {
+        return isIndexed(geomNode, null);
+    }
+
+    /**
+     * Look the node up by its id, or, only in indexes with nodes indexed before the id was, by the value it would be
+     * indexed with now, among the few nodes with the same value.
+     *
+     * @param value the index value of the node if already known, or null to compute it when needed
+     */
+    private boolean isIndexed(Node geomNode, E value) {
+        IndexHits<Node> byId = index.get(KEY_NODE_ID, geomNode.getId());
+        try {
+            if (byId.hasNext()) {
+                return true;
+            }
+        } finally {
+            byId.close();
+        }
+        if (hasNodeIds()) {
+            return false;
+        }
+        if (value == null) {
+            try {
+                value = getIndexValueFor(geomNode);
+            } catch (NotFoundException e) {
+                // no geometry, so it cannot have been indexed
+                return false;
+            }
+        }
+        IndexHits<Node> hits = index.query(indexTypeName(), exactQueryFor(value));
+        try {
+            for (Node node : hits) {
+                if (node.getId() == geomNode.getId()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            hits.close();
+        }
     }
 
-    protected abstract E getIndexValueFor(Node geomNode);
+    /**
+     * Whether anything has been added to the index, whatever the form of the index values.
+     */
+    protected boolean hasIndexedNodes() {
+        IndexHits<Node> hits = index.query(indexTypeName(), "*");
+        try {
+            return hits.hasNext();
+        } finally {
+            hits.close();
+        }
+    }
 
     @Override
     public void add(List<Node> geomNodes) {
-        for (Node node : geomNodes) {
-            add(node);
+        add(geomNodes, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Add the nodes in transactions of batchSize nodes when called outside of a transaction. The points of a batch
+     * are read from the node properties first, their index values are then computed in parallel, and the batch is
+     * added to the explicit index with a single update of the count and bounding box, which only counts the nodes
+     * that were not indexed already.
+     */
+    public void add(List<Node> geomNodes, int batchSize) {
+        for (int from = 0; from < geomNodes.size(); from += batchSize) {
+            List<Node> batch = geomNodes.subList(from, Math.min(from + batchSize, geomNodes.size()));
+            try (Transaction tx = graph.beginTx()) {
+                addBatch(batch);
+                tx.success();
+            }
+        }
+    }
+
+    private void addBatch(List<Node> batch) {
+        prepareAdd();
+        double[][] points = new double[batch.size()][];
+        double[] bbox = new double[4];
+        Envelope batchEnvelope = null;
+        for (int i = 0; i < points.length; i++) {
+            points[i] = decodePoint(batch.get(i), bbox);
+            if (batchEnvelope == null) {
+                batchEnvelope = Envelope.fromBBox(bbox);
+            } else {
+                batchEnvelope.expandToInclude(Envelope.fromBBox(bbox));
+            }
+        }
+        List<E> values = new ArrayList<>(Collections.<E>nCopies(points.length, null));
+        IntStream.range(0, points.length).parallel().forEach(i -> values.set(i, getIndexValueFor(points[i])));
+        int added = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (!addToIndex(batch.get(i), values.get(i))) {
+                added++;
+            }
+        }
+        if (batchEnvelope != null) {
+            adjustCount(added);
+            expandBoundingBox(batchEnvelope);
         }
     }
 
@@ -86,6 +387,9 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
             try {
                 Node geomNode = graph.getNodeById(geomNodeId);
                 if (geomNode != null) {
+                    if (isIndexed(geomNode)) {
+                        adjustCount(-1);
+                    }
                     index.remove(geomNode);
                     if (deleteGeomNode) {
                         for (Relationship rel : geomNode.getRelationships()) {
@@ -105,17 +409,55 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public void removeAll(boolean deleteGeomNodes, Listener monitor) {
-        try (Transaction tx = graph.beginTx()) {
-            if(deleteGeomNodes) {
-                Iterator<Node> iter = getAllIndexedNodes().iterator();
+        removeAll(deleteGeomNodes, monitor, 10000);
+    }
 
-                while(iter.hasNext()) {
-                    Node node = iter.next();
-                    remove(node.getId(), true, true);
+    /**
+     * Delete the geometry nodes, if asked to, in transactions of about batchSize nodes when called outside of a
+     * transaction, and then drop the index. Running this again after an interruption deletes the geometry nodes
+     * still in the index.
+     */
+    @Override
+    public void removeAll(boolean deleteGeomNodes, Listener monitor, int batchSize) {
+        try {
+            if (deleteGeomNodes) {
+                boolean first = true;
+                int deleted;
+                do {
+                    deleted = 0;
+                    try (Transaction tx = graph.beginTx()) {
+                        IndexHits<Node> hits = index.query(indexTypeName(), "*");
+                        try {
+                            if (first) {
+                                monitor.begin(hits.size());
+                                first = false;
+                            }
+                            while (hits.hasNext() && deleted < batchSize) {
+                                remove(hits.next().getId(), true, true);
+                                deleted++;
+                            }
+                        } finally {
+                            hits.close();
+                        }
+                        tx.success();
+                    }
+                    monitor.worked(deleted);
+                } while (deleted == batchSize);
+            } else {
+                monitor.begin(0);
+            }
+            try (Transaction tx = graph.beginTx()) {
+                index.delete();
+                Node metadata = getMetadataNode();
+                for (Relationship rel : metadata.getRelationships()) {
+                    rel.delete();
                 }
+                metadata.delete();
+                metadataNode = null;
+                tx.success();
             }
-            index.delete();
-            tx.success();
+        } finally {
+            monitor.done();
         }
     }
 
@@ -131,22 +473,36 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public boolean isEmpty() {
-        return true;
+        return count() == 0;
     }
 
     @Override
     public int count() {
-        return 0;
+        try (Transaction tx = graph.beginTx()) {
+            int count = getStoredCount();
+            tx.success();
+            return count;
+        }
     }
 
     @Override
     public Envelope getBoundingBox() {
-        return null;
+        try (Transaction tx = graph.beginTx()) {
+            double[] bbox = (double[]) getMetadataNode().getProperty(PROP_BBOX, null);
+            tx.success();
+            return bbox == null ? null : Envelope.fromBBox(bbox);
+        }
     }
 
     @Override
     public boolean isNodeIndexed(Long nodeId) {
-        return false;
+        try (Transaction tx = graph.beginTx()) {
+            boolean indexed = isIndexed(graph.getNodeById(nodeId));
+            tx.success();
+            return indexed;
+        } catch (NotFoundException e) {
+            return false;
+        }
     }
 
     @Override
@@ -156,7 +512,7 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public SearchResults searchIndex(SearchFilter filter) {
-        IndexHits<Node> indexHits = index.query(indexTypeName(), queryStringFor(filter));
+        IndexHits<Node> indexHits = index.query(indexTypeName(), queryFor(filter));
         return new SearchResults(() -> new FilteredIndexIterator(indexHits, filter));
     }
 
@@ -202,7 +558,12 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
         }
     }
 
-    protected abstract String queryStringFor(SearchFilter filter);
+    /**
+     * The query for the filter on the indexTypeName() key, either a Lucene query string or, better, a Lucene Query
+     * object that does not need to be parsed again. The hits are refined with the filter afterwards, so the query
+     * may match more nodes than the filter accepts, but never fewer.
+     */
+    protected abstract Object queryFor(SearchFilter filter);
 
     @Override
     public void addMonitor(TreeMonitor monitor) {
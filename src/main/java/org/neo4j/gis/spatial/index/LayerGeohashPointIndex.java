@@ -19,47 +19,159 @@
  */
 package org.neo4j.gis.spatial.index;
 
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.spatial.util.GeoHashUtils;
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.encoders.Configurable;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
-import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
 
-public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String> {
+import java.util.Map;
+
+/**
+ * Point index storing the geohash of each point in an explicit index. A window search is covered by the geohash
+ * cells of the finest precision needing at most maxCells cells, and queries the prefixes of those cells, so the cost
+ * of a search follows the area of the window, even for windows crossing the boundaries of large cells.
+ */
+public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String> implements Configurable {
+
+    public static final String KEY_MAX_CELLS = "maxCells";
+    public static final int DEFAULT_MAX_CELLS = 32;
+    private static final int MAX_PRECISION = 12;
+
+    private int maxCells = DEFAULT_MAX_CELLS;
 
     @Override
     protected String indexTypeName() {
         return "geohash";
     }
 
+    public int getMaxCells() {
+        return maxCells;
+    }
+
     @Override
-    protected String getIndexValueFor(Node geomNode) {
+    protected String getIndexValueFor(double[] point) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
-        Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
-        return GeoHashUtils.stringEncode(point.getX(), point.getY());
+        return GeoHashUtils.stringEncode(point[0], point[1]);
+    }
+
+    /**
+     * The cells of a geohash of this precision are 360 / 2^lonBits wide and 180 / 2^latBits high, as the five bits
+     * of each character alternate between longitude and latitude, starting with longitude.
+     */
+    private static int lonBits(int precision) {
+        return (5 * precision + 1) / 2;
     }
 
-    private String greatestCommonPrefix(String a, String b) {
-        int minLength = Math.min(a.length(), b.length());
-        for (int i = 0; i < minLength; i++) {
-            if (a.charAt(i) != b.charAt(i)) {
-                return a.substring(0, i);
+    private static int latBits(int precision) {
+        return 5 * precision / 2;
+    }
+
+    private static long cell(double value, double min, double max, int bits) {
+        long cells = 1L << bits;
+        long cell = (long) Math.floor((value - min) / (max - min) * cells);
+        return Math.max(0, Math.min(cells - 1, cell));
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * The geohashes of the cells covering the window, at the finest precision that needs no more than maxCells of
+     * them, or null if even the coarsest precision needs more.
+     */
+    String[] coveringCells(Envelope window) {
+        double minX = clamp(window.getMinX(), -180.0, 180.0);
+        double maxX = clamp(window.getMaxX(), -180.0, 180.0);
+        double minY = clamp(window.getMinY(), -90.0, 90.0);
+        double maxY = clamp(window.getMaxY(), -90.0, 90.0);
+        for (int precision = MAX_PRECISION; precision > 0; precision--) {
+            int lonBits = lonBits(precision);
+            int latBits = latBits(precision);
+            long fromX = cell(minX, -180.0, 180.0, lonBits);
+            long toX = cell(maxX, -180.0, 180.0, lonBits);
+            long fromY = cell(minY, -90.0, 90.0, latBits);
+            long toY = cell(maxY, -90.0, 90.0, latBits);
+            long count = (toX - fromX + 1) * (toY - fromY + 1);
+            if (count <= maxCells) {
+                double width = 360.0 / (1L << lonBits);
+                double height = 180.0 / (1L << latBits);
+                String[] cells = new String[(int) count];
+                int i = 0;
+                for (long x = fromX; x <= toX; x++) {
+                    for (long y = fromY; y <= toY; y++) {
+                        // encode the centre of the cell
+                        cells[i++] = GeoHashUtils.stringEncode(-180.0 + (x + 0.5) * width, -90.0 + (y + 0.5) * height, precision);
+                    }
+                }
+                return cells;
             }
         }
-        return a.substring(0, minLength);
+        return null;
     }
 
-    protected String queryStringFor(SearchFilter filter) {
+    @Override
+    protected Object queryFor(SearchFilter filter) {
         if (filter instanceof AbstractSearchEnvelopeIntersection) {
             Envelope referenceEnvelope = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
-            String maxHash = GeoHashUtils.stringEncode(referenceEnvelope.getMaxX(), referenceEnvelope.getMaxY());
-            String minHash = GeoHashUtils.stringEncode(referenceEnvelope.getMinX(), referenceEnvelope.getMinY());
-            return greatestCommonPrefix(minHash, maxHash) + "*";
+            String[] cells = coveringCells(referenceEnvelope);
+            if (cells == null) {
+                return indexTypeName() + ":*";
+            }
+            BooleanQuery.Builder query = new BooleanQuery.Builder();
+            for (String cell : cells) {
+                query.add(new PrefixQuery(new Term(indexTypeName(), cell)), BooleanClause.Occur.SHOULD);
+            }
+            return query.build();
         } else {
             throw new UnsupportedOperationException("Geohash Index only supports searches based on AbstractSearchEnvelopeIntersection, not " + filter.getClass().getCanonicalName());
         }
     }
+
+    @Override
+    public String getConfiguration() {
+        return Integer.toString(maxCells);
+    }
+
+    @Override
+    public void setConfiguration(String configuration) {
+        if (configuration != null && configuration.trim().length() > 0) {
+            maxCells = Integer.parseInt(configuration.trim());
+        }
+    }
+
+    /**
+     * Configure maxCells, the largest number of geohash cells covering a search window. The configuration is stored
+     * on the layer node.
+     */
+    @Override
+    public void configure(Map<String, Object> config) {
+        for (String key : config.keySet()) {
+            switch (key) {
+                case KEY_MAX_CELLS:
+                    int cells = Integer.parseInt(config.get(key).toString());
+                    if (cells < 1) {
+                        throw new IllegalArgumentException("LayerGeohashPointIndex does not allow " + key + " less than 1");
+                    }
+                    if (cells > BooleanQuery.getMaxClauseCount()) {
+                        throw new IllegalArgumentException("LayerGeohashPointIndex does not allow " + key + " greater than " + BooleanQuery.getMaxClauseCount());
+                    }
+                    maxCells = cells;
+                    break;
+                default:
+                    throw new IllegalArgumentException("No such LayerGeohashPointIndex configuration key: " + key);
+            }
+        }
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            layer.getLayerNode().setProperty(Constants.PROP_INDEX_CONFIG, getConfiguration());
+            tx.success();
+        }
+    }
 }
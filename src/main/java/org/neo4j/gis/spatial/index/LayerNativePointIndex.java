@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.encoders.NativePointEncoder;
+import org.neo4j.gis.spatial.filter.SearchRecords;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
+import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.rtree.TreeMonitor;
+import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.gis.spatial.rtree.filter.SearchResults;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.helpers.collection.Iterators;
+import org.neo4j.values.storable.CoordinateReferenceSystem;
+import org.neo4j.values.storable.PointValue;
+import org.neo4j.values.storable.Values;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * Point index backed by the native schema index of Neo4j, for layers using the NativePointEncoder. The geometry nodes
+ * of the layer get a label of their own, and a schema index on that label and the point property of the encoder
+ * answers bounding box and distance searches through Cypher point predicates, so that index updates are part of the
+ * transaction like any other property change.
+ * <p>
+ * Neo4j does not allow schema changes in a transaction that writes data, so the schema index is created before the
+ * layer, in a transaction of its own, by createSchemaIndex, and adding nodes does not touch the schema. Removing
+ * everything from the index removes the label from the geometry nodes but keeps the schema index, which is dropped with the label by
+ * <code>DROP INDEX ON :`label`(property)</code> if needed.
+ */
+public class LayerNativePointIndex implements LayerIndexReader, SpatialIndexWriter {
+
+    public static final String LABEL_PREFIX = "SpatialLayer_";
+
+    protected Layer layer;
+    private GraphDatabaseService graph;
+    private Label label;
+
+    @Override
+    public void init(Layer layer) {
+        this.layer = layer;
+        this.graph = layer.getSpatialDatabase().getDatabase();
+        this.label = Label.label(LABEL_PREFIX + layer.getName());
+    }
+
+    @Override
+    public Layer getLayer() {
+        return layer;
+    }
+
+    public Label getLabel() {
+        return label;
+    }
+
+    private NativePointEncoder getEncoder() {
+        if (layer.getGeometryEncoder() instanceof NativePointEncoder) {
+            return (NativePointEncoder) layer.getGeometryEncoder();
+        } else {
+            throw new IllegalArgumentException("LayerNativePointIndex only supports layers using the NativePointEncoder, not " + layer.getGeometryEncoder().getClass().getCanonicalName());
+        }
+    }
+
+    private String getProperty() {
+        return getEncoder().getLocationProperty();
+    }
+
+    /**
+     * Create the schema index for the points of the layer in a transaction of its own, unless it exists already, so
+     * this must be called outside of a transaction if it does not. Nodes added while the index is still being
+     * populated are indexed too, and searches fall back to a label scan until it is online, so this does not wait.
+     */
+    public static void createSchemaIndex(GraphDatabaseService graph, String layerName, String property) {
+        Label label = Label.label(LABEL_PREFIX + layerName);
+        boolean exists;
+        try (Transaction tx = graph.beginTx()) {
+            exists = hasSchemaIndex(graph, label, property);
+            tx.success();
+        }
+        if (!exists) {
+            try (Transaction tx = graph.beginTx()) {
+                graph.schema().indexFor(label).on(property).create();
+                tx.success();
+            }
+        }
+    }
+
+    /**
+     * Whether the schema index for the points of the layer exists, which must be checked in a transaction.
+     */
+    public static boolean hasSchemaIndex(GraphDatabaseService graph, String layerName, String property) {
+        return hasSchemaIndex(graph, Label.label(LABEL_PREFIX + layerName), property);
+    }
+
+    private static boolean hasSchemaIndex(GraphDatabaseService graph, Label label, String property) {
+        for (IndexDefinition index : graph.schema().getIndexes(label)) {
+            Iterator<String> keys = index.getPropertyKeys().iterator();
+            if (keys.hasNext() && keys.next().equals(property) && !keys.hasNext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public SearchRecords search(SearchFilter filter) {
+        return new SearchRecords(layer, searchIndex(filter));
+    }
+
+    @Override
+    public void add(Node geomNode) {
+        geomNode.addLabel(label);
+    }
+
+    @Override
+    public void add(List<Node> geomNodes) {
+        for (Node node : geomNodes) {
+            node.addLabel(label);
+        }
+    }
+
+    @Override
+    public void remove(long geomNodeId, boolean deleteGeomNode, boolean throwExceptionIfNotFound) {
+        try (Transaction tx = graph.beginTx()) {
+            try {
+                Node geomNode = graph.getNodeById(geomNodeId);
+                if (deleteGeomNode) {
+                    for (Relationship rel : geomNode.getRelationships()) {
+                        rel.delete();
+                    }
+                    geomNode.delete();
+                } else {
+                    geomNode.removeLabel(label);
+                }
+            } catch (NotFoundException nfe) {
+                if (throwExceptionIfNotFound) {
+                    throw nfe;
+                }
+            }
+            tx.success();
+        }
+    }
+
+    @Override
+    public void removeAll(boolean deleteGeomNodes, Listener monitor) {
+        removeAll(deleteGeomNodes, monitor, 10000);
+    }
+
+    /**
+     * Remove the label from the geometry nodes, or delete them if asked to, in transactions of about batchSize nodes
+     * when called outside of a transaction. The schema index is kept, see the class comment.
+     */
+    @Override
+    public void removeAll(boolean deleteGeomNodes, Listener monitor, int batchSize) {
+        try {
+            monitor.begin(count());
+            int removed;
+            do {
+                removed = 0;
+                try (Transaction tx = graph.beginTx()) {
+                    List<Long> batch = new ArrayList<>();
+                    try (ResourceIterator<Node> nodes = graph.findNodes(label)) {
+                        while (nodes.hasNext() && batch.size() < batchSize) {
+                            batch.add(nodes.next().getId());
+                        }
+                    }
+                    for (long nodeId : batch) {
+                        remove(nodeId, deleteGeomNodes, true);
+                    }
+                    removed = batch.size();
+                    tx.success();
+                }
+                monitor.worked(removed);
+            } while (removed == batchSize);
+        } finally {
+            monitor.done();
+        }
+    }
+
+    @Override
+    public void clear(Listener monitor) {
+        removeAll(false, monitor);
+    }
+
+    @Override
+    public EnvelopeDecoder getEnvelopeDecoder() {
+        return layer.getGeometryEncoder();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    @Override
+    public int count() {
+        try (Transaction tx = graph.beginTx()) {
+            // answered from the counts store
+            Number count = Iterators.single(graph.execute("MATCH (n:" + quote(label.name()) + ") RETURN count(n) AS count").<Number>columnAs("count"));
+            tx.success();
+            return count.intValue();
+        }
+    }
+
+    @Override
+    public Envelope getBoundingBox() {
+        String property = "n." + quote(getProperty());
+        try (Transaction tx = graph.beginTx()) {
+            Map<String, Object> row;
+            try (Result result = graph.execute("MATCH (n:" + quote(label.name()) + ") RETURN " +
+                    "min(" + property + ".x) AS minX, max(" + property + ".x) AS maxX, " +
+                    "min(" + property + ".y) AS minY, max(" + property + ".y) AS maxY")) {
+                row = result.next();
+            }
+            tx.success();
+            if (row.get("minX") == null) {
+                return null;
+            }
+            return new Envelope(((Number) row.get("minX")).doubleValue(), ((Number) row.get("maxX")).doubleValue(),
+                    ((Number) row.get("minY")).doubleValue(), ((Number) row.get("maxY")).doubleValue());
+        }
+    }
+
+    @Override
+    public boolean isNodeIndexed(Long nodeId) {
+        try (Transaction tx = graph.beginTx()) {
+            boolean indexed = graph.getNodeById(nodeId).hasLabel(label);
+            tx.success();
+            return indexed;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Iterable<Node> getAllIndexedNodes() {
+        return () -> graph.findNodes(label);
+    }
+
+    /**
+     * Envelope intersection searches become an index backed point range predicate on the label and property, the
+     * filter then checks the geometries found. Other searches check every node of the layer.
+     */
+    @Override
+    public SearchResults searchIndex(SearchFilter filter) {
+        if (filter instanceof AbstractSearchEnvelopeIntersection) {
+            Envelope envelope = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
+            CoordinateReferenceSystem crs = getEncoder().getCrs();
+            String query = "MATCH (n:" + quote(label.name()) + ") WHERE $min <= n." + quote(getProperty()) + " <= $max RETURN n";
+            Map<String, Object> params = map(
+                    "min", pointValue(crs, envelope.getMin(0), envelope.getMin(1)),
+                    "max", pointValue(crs, envelope.getMax(0), envelope.getMax(1)));
+            return new SearchResults(() -> new FilteredIndexIterator(graph.execute(query, params).<Node>columnAs("n"), filter));
+        } else {
+            return new SearchResults(() -> new FilteredIndexIterator(graph.findNodes(label), filter));
+        }
+    }
+
+    /**
+     * Find the geometry nodes within this distance of the point with an index backed distance predicate. The
+     * distance is in km for geographic layers, like the other distance searches, otherwise in the units of the CRS.
+     */
+    public SearchResults searchWithinDistance(Coordinate point, double distance) {
+        CoordinateReferenceSystem crs = getEncoder().getCrs();
+        String query = "MATCH (n:" + quote(label.name()) + ") WHERE distance(n." + quote(getProperty()) + ", $point) <= $distance RETURN n";
+        Map<String, Object> params = map(
+                "point", pointValue(crs, point.x, point.y),
+                "distance", crs.isGeographic() ? distance * 1000.0 : distance);
+        return new SearchResults(() -> graph.execute(query, params).<Node>columnAs("n"));
+    }
+
+    /**
+     * Geographic points are only valid within the range of latitudes and longitudes, so search windows reaching
+     * beyond them are clipped.
+     */
+    private static PointValue pointValue(CoordinateReferenceSystem crs, double x, double y) {
+        if (crs.isGeographic()) {
+            x = Math.max(-180.0, Math.min(180.0, x));
+            y = Math.max(-90.0, Math.min(90.0, y));
+        }
+        return Values.pointValue(crs, x, y);
+    }
+
+    private static String quote(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    private static class FilteredIndexIterator implements Iterator<Node> {
+        private Iterator<Node> inner;
+        private SearchFilter filter;
+        private Node next = null;
+
+        private FilteredIndexIterator(Iterator<Node> inner, SearchFilter filter) {
+            this.inner = inner;
+            this.filter = filter;
+            prefetch();
+        }
+
+        private void prefetch() {
+            next = null;
+            while (inner.hasNext()) {
+                Node node = inner.next();
+                if (filter.geometryMatches(node)) {
+                    next = node;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Node next() {
+            Node node = next;
+            if (node == null) {
+                throw new NoSuchElementException(); // GeoPipes relies on this behaviour instead of hasNext()
+            } else {
+                prefetch();
+                return node;
+            }
+        }
+    }
+
+    @Override
+    public void addMonitor(TreeMonitor monitor) {
+
+    }
+
+    @Override
+    public void configure(Map<String, Object> config) {
+
+    }
+}
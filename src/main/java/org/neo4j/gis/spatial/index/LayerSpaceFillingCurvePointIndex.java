@@ -19,27 +19,69 @@
  */
 package org.neo4j.gis.spatial.index;
 
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.encoders.Configurable;
 import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
 import org.neo4j.gis.spatial.index.curves.StandardConfiguration;
 import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.lucene.ValueContext;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.cs.CoordinateSystemAxis;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
-public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBackedPointIndex<Long> {
+/**
+ * Point index storing the position of each point on a space filling curve in an explicit index. Curve values are
+ * indexed as numbers, and window searches are numeric range queries over the curve ranges covering the window, with
+ * the closest ranges merged until there are at most maxRanges of them. The depth of the curve, maxLevels, and
+ * maxRanges are configured per layer, and stored in the index configuration of the layer with the first point added.
+ * <p>
+ * Layers indexed before curve values were indexed as numbers have no stored configuration, and keep being searched
+ * with query strings until they are emptied.
+ */
+public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBackedPointIndex<Long> implements Configurable {
+
+    public static final String KEY_MAX_LEVELS = "maxLevels";
+    public static final String KEY_MAX_RANGES = "maxRanges";
+    public static final int DEFAULT_MAX_LEVELS = 12;
+    public static final int MAX_MAX_LEVELS = 30;
+    public static final int DEFAULT_MAX_RANGES = 128;
+    private static final String NUMERIC_VALUES = "numeric";
+    private static final String STRING_VALUES = "string";
 
     private SpaceFillingCurve curve = null;
+    private int maxLevels = DEFAULT_MAX_LEVELS;
+    private int maxRanges = DEFAULT_MAX_RANGES;
+    private Boolean numericValues = null;
 
     @Override
     protected String indexTypeName() {
         return "hilbert";
     }
 
+    @Override
+    public void init(Layer layer) {
+        super.init(layer);
+        if (numericValues == null || !numericValues) {
+            // no stored configuration, so either a new layer or one indexed before values were numeric, which can
+            // switch to numeric values once empty
+            try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+                numericValues = !hasIndexedNodes();
+                tx.success();
+            }
+        }
+    }
+
     private SpaceFillingCurve getCurve() {
         if (this.curve == null) {
             CoordinateReferenceSystem crs = layer.getCoordinateReferenceSystem();
@@ -55,7 +97,7 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
                     getMin(crs.getCoordinateSystem().getAxis(1)),
                     getMax(crs.getCoordinateSystem().getAxis(1))
             );
-            this.curve = makeCurve(envelope, 12);//new HilbertSpaceFillingCurve2D(envelope, 12);
+            this.curve = makeCurve(envelope, maxLevels);
         }
         return this.curve;
     }
@@ -74,12 +116,39 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
         else return max;
     }
 
+    public int getMaxLevels() {
+        return maxLevels;
+    }
+
+    public int getMaxRanges() {
+        return maxRanges;
+    }
+
+    @Override
+    protected void prepareAdd() {
+        Node layerNode = layer.getLayerNode();
+        if (numericValues && !getConfiguration().equals(layerNode.getProperty(Constants.PROP_INDEX_CONFIG, null))) {
+            // so that later inits do not take the values for string values
+            layerNode.setProperty(Constants.PROP_INDEX_CONFIG, getConfiguration());
+        }
+        // built here, not by the threads computing index values
+        getCurve();
+    }
+
     @Override
-    protected Long getIndexValueFor(Node geomNode) {
+    protected Long getIndexValueFor(double[] point) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
-        Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
-        return getCurve().derivedValueFor(new double[]{point.getX(), point.getY()});
+        return getCurve().derivedValueFor(point);
+    }
+
+    @Override
+    protected Object toIndexValue(Long value) {
+        return numericValues ? new ValueContext(value).indexNumeric() : value;
+    }
+
+    @Override
+    protected Object exactQueryFor(Long value) {
+        return numericValues ? rangeQuery(value, value) : super.exactQueryFor(value);
     }
 
     private void appendRange(StringBuilder sb, SpaceFillingCurve.LongRange range) {
@@ -90,20 +159,154 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
         }
     }
 
-    protected String queryStringFor(SearchFilter filter) {
+    private List<SpaceFillingCurve.LongRange> getTiles(SearchFilter filter) {
         if (filter instanceof AbstractSearchEnvelopeIntersection) {
             org.neo4j.gis.spatial.rtree.Envelope referenceEnvelope = ((AbstractSearchEnvelopeIntersection) filter).getReferenceEnvelope();
-            List<SpaceFillingCurve.LongRange> tiles = getCurve().getTilesIntersectingEnvelope(referenceEnvelope.getMin(), referenceEnvelope.getMax(), new StandardConfiguration());
-            StringBuilder sb = new StringBuilder();
-            for (SpaceFillingCurve.LongRange range : tiles) {
-                if (sb.length() > 0) {
-                    sb.append(" OR ");
-                }
-                appendRange(sb, range);
-            }
-            return sb.toString();
+            return getCurve().getTilesIntersectingEnvelope(referenceEnvelope.getMin(), referenceEnvelope.getMax(), new StandardConfiguration());
         } else {
             throw new UnsupportedOperationException("Hilbert Index only supports searches based on AbstractSearchEnvelopeIntersection, not " + filter.getClass().getCanonicalName());
         }
     }
+
+    /**
+     * Query string for layers indexed before curve values were indexed as numbers.
+     */
+    private String queryStringFor(SearchFilter filter) {
+        StringBuilder sb = new StringBuilder();
+        for (SpaceFillingCurve.LongRange range : getTiles(filter)) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            appendRange(sb, range);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    protected Object queryFor(SearchFilter filter) {
+        if (!numericValues) {
+            return queryStringFor(filter);
+        }
+        long[] ranges = mergeRanges(getTiles(filter), Math.min(maxRanges, BooleanQuery.getMaxClauseCount()));
+        if (ranges.length == 2) {
+            return rangeQuery(ranges[0], ranges[1]);
+        }
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (int i = 0; i < ranges.length; i += 2) {
+            query.add(rangeQuery(ranges[i], ranges[i + 1]), BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    private Query rangeQuery(long min, long max) {
+        return NumericRangeQuery.newLongRange(indexTypeName(), min, max, true, true);
+    }
+
+    /**
+     * Merge touching ranges, and then close the smallest gaps between ranges until there are at most maxRanges.
+     * Closing a gap only adds curve values that the search filter rejects afterwards.
+     *
+     * @return the merged ranges as min, max pairs in curve order
+     */
+    static long[] mergeRanges(List<SpaceFillingCurve.LongRange> tiles, int maxRanges) {
+        long[] sorted = new long[tiles.size() * 2];
+        Integer[] order = new Integer[tiles.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(tiles.get(a).min, tiles.get(b).min));
+        int count = 0;
+        for (Integer i : order) {
+            SpaceFillingCurve.LongRange tile = tiles.get(i);
+            if (count > 0 && tile.min <= sorted[2 * count - 1] + 1) {
+                sorted[2 * count - 1] = Math.max(sorted[2 * count - 1], tile.max);
+            } else {
+                sorted[2 * count] = tile.min;
+                sorted[2 * count + 1] = tile.max;
+                count++;
+            }
+        }
+        if (count > maxRanges) {
+            // the gap before range i is sorted[2 * i] - sorted[2 * i - 1], close the count - maxRanges smallest
+            Integer[] gaps = new Integer[count - 1];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i] = i + 1;
+            }
+            Arrays.sort(gaps, (a, b) -> Long.compare(sorted[2 * a] - sorted[2 * a - 1], sorted[2 * b] - sorted[2 * b - 1]));
+            boolean[] closed = new boolean[count];
+            for (int i = 0; i < count - maxRanges; i++) {
+                closed[gaps[i]] = true;
+            }
+            int merged = 0;
+            for (int i = 0; i < count; i++) {
+                if (closed[i]) {
+                    sorted[2 * merged - 1] = sorted[2 * i + 1];
+                } else {
+                    sorted[2 * merged] = sorted[2 * i];
+                    sorted[2 * merged + 1] = sorted[2 * i + 1];
+                    merged++;
+                }
+            }
+            count = merged;
+        }
+        return Arrays.copyOf(sorted, 2 * count);
+    }
+
+    @Override
+    public String getConfiguration() {
+        return maxLevels + ":" + maxRanges + ":" + (numericValues == null || numericValues ? NUMERIC_VALUES : STRING_VALUES);
+    }
+
+    @Override
+    public void setConfiguration(String configuration) {
+        if (configuration != null && configuration.trim().length() > 0) {
+            String[] fields = configuration.split(":");
+            if (fields.length > 0) maxLevels = Integer.parseInt(fields[0]);
+            if (fields.length > 1) maxRanges = Integer.parseInt(fields[1]);
+            if (fields.length > 2) numericValues = NUMERIC_VALUES.equals(fields[2]);
+            curve = null;
+        }
+    }
+
+    /**
+     * Configure maxLevels, the depth of the curve, which can only change while the index is empty, and maxRanges,
+     * the largest number of ranges a window search is merged into. The configuration is stored on the layer node.
+     */
+    @Override
+    public void configure(Map<String, Object> config) {
+        try (Transaction tx = layer.getSpatialDatabase().getDatabase().beginTx()) {
+            for (String key : config.keySet()) {
+                switch (key) {
+                    case KEY_MAX_LEVELS:
+                        int levels = Integer.parseInt(config.get(key).toString());
+                        if (levels < 1) {
+                            throw new IllegalArgumentException(getClass().getSimpleName() + " does not allow " + key + " less than 1");
+                        }
+                        if (levels > MAX_MAX_LEVELS) {
+                            throw new IllegalArgumentException(getClass().getSimpleName() + " does not allow " + key + " greater than " + MAX_MAX_LEVELS);
+                        }
+                        if (levels != maxLevels) {
+                            if (hasIndexedNodes()) {
+                                throw new IllegalArgumentException("Cannot change " + key + " of the non-empty index of layer " + layer.getName());
+                            }
+                            maxLevels = levels;
+                            numericValues = true;
+                            curve = null;
+                        }
+                        break;
+                    case KEY_MAX_RANGES:
+                        int ranges = Integer.parseInt(config.get(key).toString());
+                        if (ranges < 1) {
+                            throw new IllegalArgumentException(getClass().getSimpleName() + " does not allow " + key + " less than 1");
+                        }
+                        maxRanges = ranges;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("No such " + getClass().getSimpleName() + " configuration key: " + key);
+                }
+            }
+            layer.getLayerNode().setProperty(Constants.PROP_INDEX_CONFIG, getConfiguration());
+            tx.success();
+        }
+    }
 }
@@ -22,10 +22,15 @@ package org.neo4j.gis.spatial.index;
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
 import org.neo4j.gis.spatial.rtree.TreeMonitor;
+import org.neo4j.gis.spatial.rtree.filter.MultiSearchResult;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.graphdb.Node;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public interface SpatialIndexReader {
@@ -44,6 +49,25 @@ public interface SpatialIndexReader {
 
     SearchResults searchIndex(SearchFilter filter);
 
+    /**
+     * Search with several filters at once. Every geometry node matching at least one of the filters is returned once,
+     * tagged with the indexes of the filters it matched. This default runs one search per filter, indexes that can
+     * check all filters in a single pass should override it.
+     */
+    default List<MultiSearchResult> searchIndex(List<SearchFilter> filters) {
+        Map<Node, BitSet> matches = new LinkedHashMap<>();
+        for (int i = 0; i < filters.size(); i++) {
+            for (Node node : searchIndex(filters.get(i))) {
+                matches.computeIfAbsent(node, n -> new BitSet(filters.size())).set(i);
+            }
+        }
+        List<MultiSearchResult> results = new ArrayList<>(matches.size());
+        for (Map.Entry<Node, BitSet> match : matches.entrySet()) {
+            results.add(new MultiSearchResult(match.getKey(), match.getValue()));
+        }
+        return results;
+    }
+
     void addMonitor(TreeMonitor monitor);
 
     void configure(Map<String, Object> config);
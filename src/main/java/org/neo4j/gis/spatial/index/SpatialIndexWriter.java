@@ -33,6 +33,15 @@ public interface SpatialIndexWriter extends SpatialIndexReader {
 	void remove(long geomNodeId, boolean deleteGeomNode, boolean throwExceptionIfNotFound);
 	
 	void removeAll(boolean deleteGeomNodes, Listener monitor);
+
+	/**
+	 * Remove everything from the index in transactions of about batchSize deletions, when called outside of a
+	 * transaction, for indexes that are too large to remove in one. Indexes that do not support this remove
+	 * everything at once.
+	 */
+	default void removeAll(boolean deleteGeomNodes, Listener monitor, int batchSize) {
+		removeAll(deleteGeomNodes, monitor);
+	}
 	
 	void clear(Listener monitor);
 	
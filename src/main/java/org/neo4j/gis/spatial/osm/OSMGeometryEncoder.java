@@ -137,6 +137,21 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		return new Envelope(bbox[0], bbox[1], bbox[2], bbox[3]);
 	}
 
+	@Override
+	public boolean decodeBBox(PropertyContainer container, double[] bbox) {
+		if (bbox.length != 4) {
+			return false;
+		}
+		Node geomNode = testIsNode(container);
+		double[] value = (double[]) geomNode.getProperty(PROP_BBOX);
+		// stored as xmin, xmax, ymin, ymax
+		bbox[0] = value[0];
+		bbox[1] = value[2];
+		bbox[2] = value[1];
+		bbox[3] = value[3];
+		return true;
+	}
+
 	@Override
 	public void encodeEnvelope(Envelope mbb, PropertyContainer container) {
 		container.setProperty(PROP_BBOX, new double[] { mbb.getMinX(), mbb.getMaxX(), mbb.getMinY(), mbb.getMaxY() });
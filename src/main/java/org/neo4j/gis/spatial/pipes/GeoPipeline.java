@@ -32,6 +32,9 @@ import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.collection.AbstractFeatureCollection;
 import org.geotools.filter.text.cql2.CQLException;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.neo4j.gis.spatial.GeometryEncoder;
+import org.neo4j.gis.spatial.rtree.EnvelopeDistance;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.gis.spatial.rtree.filter.SearchAll;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.Constants;
@@ -409,6 +412,69 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow,GeoPipeFlow> {
 			.propertyFilter("Distance", maxDistance, FilterPipe.Filter.LESS_THAN_EQUAL);
 	}
 	
+	/**
+	 * Finds the Layer items nearest to the given point and calculates their distance to it.
+	 * Layers indexed with an RTree are searched best-first, so exactly numberOfItemsToFind items are returned
+	 * (unless the layer is smaller) ordered by distance. Other layers fall back to the density based search window,
+	 * sorted and cut to numberOfItemsToFind.
+	 *
+	 * @param layer with latitude, longitude coordinates
+	 * @param point
+	 * @param numberOfItemsToFind at least 1
+	 * @return geoPipeline
+	 */
+	public static GeoPipeline startKNearestNeighborLatLonSearch(Layer layer, Coordinate point, int numberOfItemsToFind) {
+		if (numberOfItemsToFind < 1) {
+			throw new IllegalArgumentException("Number of items to find must be at least 1: " + numberOfItemsToFind);
+		}
+		if (layer.getIndex() instanceof RTreeIndex) {
+			GeometryEncoder encoder = layer.getGeometryEncoder();
+			List<RTreeIndex.NodeWithDistance> nearest = ((RTreeIndex) layer.getIndex()).searchNearestNeighbours(
+					new double[]{point.x, point.y}, numberOfItemsToFind, EnvelopeDistance.ORTHODROMIC,
+					node -> OrthodromicDistance.calculateDistanceToGeometry(point, encoder.decodeGeometry(node)));
+			return start(layer, toRecords(layer, nearest)).calculateOrthodromicDistance(point);
+		} else {
+			return startNearestNeighborLatLonSearch(layer, point, numberOfItemsToFind)
+					.sort(OrthodromicDistance.DISTANCE).range(0, numberOfItemsToFind - 1);
+		}
+	}
+
+	/**
+	 * Finds the Layer items nearest to the given point and calculates their distance to it.
+	 * Layers indexed with an RTree are searched best-first, so exactly numberOfItemsToFind items are returned
+	 * (unless the layer is smaller) ordered by distance. Other layers fall back to the density based search window,
+	 * sorted and cut to numberOfItemsToFind.
+	 *
+	 * @param layer
+	 * @param point
+	 * @param numberOfItemsToFind at least 1
+	 * @return geoPipeline
+	 */
+	public static GeoPipeline startKNearestNeighborSearch(Layer layer, Coordinate point, int numberOfItemsToFind) {
+		if (numberOfItemsToFind < 1) {
+			throw new IllegalArgumentException("Number of items to find must be at least 1: " + numberOfItemsToFind);
+		}
+		Geometry reference = layer.getGeometryFactory().createPoint(point);
+		if (layer.getIndex() instanceof RTreeIndex) {
+			GeometryEncoder encoder = layer.getGeometryEncoder();
+			List<RTreeIndex.NodeWithDistance> nearest = ((RTreeIndex) layer.getIndex()).searchNearestNeighbours(
+					new double[]{point.x, point.y}, numberOfItemsToFind, EnvelopeDistance.CARTESIAN,
+					node -> reference.distance(encoder.decodeGeometry(node)));
+			return start(layer, toRecords(layer, nearest)).calculateDistance(reference);
+		} else {
+			return startNearestNeighborSearch(layer, point, numberOfItemsToFind)
+					.sort("Distance").range(0, numberOfItemsToFind - 1);
+		}
+	}
+
+	private static List<SpatialDatabaseRecord> toRecords(Layer layer, List<RTreeIndex.NodeWithDistance> nodes) {
+		List<SpatialDatabaseRecord> records = new ArrayList<>(nodes.size());
+		for (RTreeIndex.NodeWithDistance node : nodes) {
+			records.add(new SpatialDatabaseRecord(layer, node.node));
+		}
+		return records;
+	}
+
 	/**
 	 * Adds a pipe at the end of this pipeline
 	 * 
@@ -28,10 +28,13 @@ import com.vividsolutions.jts.io.WKTReader;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.neo4j.gis.spatial.*;
 import org.neo4j.gis.spatial.encoders.SimpleGraphEncoder;
+import org.neo4j.gis.spatial.encoders.NativePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
 import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
 import org.neo4j.gis.spatial.index.LayerGeohashPointIndex;
 import org.neo4j.gis.spatial.index.LayerHilbertPointIndex;
+import org.neo4j.gis.spatial.index.LayerNativePointIndex;
 import org.neo4j.gis.spatial.index.LayerZOrderPointIndex;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMImporter;
@@ -39,6 +42,9 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.neo4j.gis.spatial.pipes.GeoPipeline;
 import org.neo4j.gis.spatial.pipes.processing.OrthodromicDistance;
 import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
+import org.neo4j.gis.spatial.rtree.RTreeStatistics;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
@@ -55,12 +61,15 @@ import static org.neo4j.procedure.Mode.*;
 
 import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -122,6 +131,66 @@ public class SpatialProcedures {
         }
     }
 
+    public static class MultiWindowResult {
+        public final Node node;
+        public final List<Long> windows;
+
+        public MultiWindowResult(Node node, List<Long> windows) {
+            this.node = node;
+            this.windows = windows;
+        }
+    }
+
+    public static class GridCellResult {
+        public final long column;
+        public final long row;
+        public final List<Double> bbox;
+        public final long count;
+
+        public GridCellResult(long column, long row, List<Double> bbox, long count) {
+            this.column = column;
+            this.row = row;
+            this.bbox = bbox;
+            this.count = count;
+        }
+    }
+
+    public static class JoinResult {
+        public final Node left;
+        public final Node right;
+
+        public JoinResult(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    public static class IndexStatsResult {
+        public final long height;
+        public final List<Long> nodesPerLevel;
+        public final List<Long> fillHistogram;
+        public final double overlap;
+        public final List<Double> overlapPerLevel;
+        public final double deadSpaceRatio;
+        public final Map<String, Object> leafAspectRatio;
+        public final double pagesPerQuery;
+
+        public IndexStatsResult(RTreeStatistics statistics) {
+            this.height = statistics.getHeight();
+            this.nodesPerLevel = statistics.getNodesPerLevel();
+            this.fillHistogram = statistics.getFillHistogram();
+            this.overlap = statistics.getOverlap();
+            this.overlapPerLevel = statistics.getOverlapPerLevel();
+            this.deadSpaceRatio = statistics.getDeadSpaceRatio();
+            this.leafAspectRatio = map(
+                    "min", statistics.getMinLeafAspectRatio(),
+                    "mean", statistics.getMeanLeafAspectRatio(),
+                    "max", statistics.getMaxLeafAspectRatio(),
+                    "degenerate", statistics.getDegenerateLeafCount());
+            this.pagesPerQuery = statistics.getPagesPerQuery();
+        }
+    }
+
     public static class GeometryResult {
         public final Object geometry;
 
@@ -145,7 +214,7 @@ public class SpatialProcedures {
         encoderClasses.clear();
         // TODO: Make this auto-find classes that implement GeometryEncoder
         for (Class cls : new Class[]{
-                SimplePointEncoder.class, OSMGeometryEncoder.class, SimplePropertyEncoder.class,
+                SimplePointEncoder.class, NativePointEncoder.class, OSMGeometryEncoder.class, SimplePropertyEncoder.class,
                 WKTGeometryEncoder.class, WKBGeometryEncoder.class, SimpleGraphEncoder.class
         }) {
             if (GeometryEncoder.class.isAssignableFrom(cls)) {
@@ -249,6 +318,26 @@ public class SpatialProcedures {
         }
     }
 
+    @Procedure(value="spatial.addNativePointLayer", mode=WRITE)
+    @Description("Adds a new point layer storing native points in the given property, indexed by the schema index, returns the layer root node")
+    public Stream<NodeResult> addNativePointLayer(
+            @Name("name") String name,
+            @Name(value = "locationProperty", defaultValue = NativePointEncoder.DEFAULT_LOCATION) String locationProperty,
+            @Name(value = "crsName", defaultValue = "wgs-84") String crsName) {
+        SpatialDatabaseService sdb = wrap(db);
+        Layer layer = sdb.getLayer(name);
+        if (layer == null) {
+            // the schema index cannot be created in the transaction of this procedure
+            if (!LayerNativePointIndex.hasSchemaIndex(db, name, locationProperty)) {
+                throw new IllegalArgumentException("Create the schema index of layer '" + name + "' first with: CREATE INDEX ON :`"
+                        + LayerNativePointIndex.LABEL_PREFIX + name + "`(`" + locationProperty + "`)");
+            }
+            return streamNode(sdb.createNativePointLayer(name, locationProperty, crsName).getLayerNode());
+        } else {
+            throw new IllegalArgumentException("Cannot create existing layer: " + name);
+        }
+    }
+
     @Procedure(value="spatial.addPointLayerXY", mode=WRITE)
     @Description("Adds a new simple point layer with the given properties for x and y coordinates, returns the layer root node")
     public Stream<NodeResult> addSimplePointLayer(
@@ -405,6 +494,59 @@ public class SpatialProcedures {
         wrap(db).deleteLayer(name, new ProgressLoggingListener("Deleting layer '" + name + "'", log.infoLogger()));
     }
 
+    @Procedure(value="spatial.optimizeIndex", mode=WRITE)
+    @Description("Rebuilds the RTree index of the given layer beside the current one and then replaces it, returns the count of geometries indexed")
+    public Stream<CountResult> optimizeIndex(@Name("layerName") String name) {
+        Layer layer = getLayerOrThrow(name);
+        if (!(layer.getIndex() instanceof RTreeIndex)) {
+            throw new IllegalArgumentException("Layer '" + name + "' does not have an RTree index");
+        }
+        RTreeIndex index = (RTreeIndex) layer.getIndex();
+        // in the transaction of this procedure the batches of the rebuild would all be committed together at the end
+        FutureTask<Integer> rebuild = new FutureTask<>(() ->
+                index.rebuild(10000, new ProgressLoggingListener("Optimizing index of layer '" + name + "'", log.infoLogger())));
+        new Thread(rebuild, "spatial.optimizeIndex-" + name).start();
+        try {
+            return Stream.of(new CountResult(rebuild.get()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while optimizing index of layer '" + name + "'", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to optimize index of layer '" + name + "': " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @Procedure(value="spatial.flushIndexBuffer", mode=WRITE)
+    @Description("Moves the geometries in the write buffer of the RTree index of the given layer into the tree, returns the count of geometries moved")
+    public Stream<CountResult> flushIndexBuffer(@Name("layerName") String name) {
+        Layer layer = getLayerOrThrow(name);
+        if (!(layer.getIndex() instanceof RTreeIndex)) {
+            throw new IllegalArgumentException("Layer '" + name + "' does not have an RTree index");
+        }
+        return Stream.of(new CountResult(((RTreeIndex) layer.getIndex()).flushWriteBuffer()));
+    }
+
+    @Procedure(value="spatial.recount", mode=WRITE)
+    @Description("Counts the geometries in the RTree index of the given layer by visiting the whole index, and stores the result as the count used by the layer from then on")
+    public Stream<CountResult> recount(@Name("layerName") String name) {
+        return Stream.of(new CountResult(getRTreeIndexOrThrow(getLayerOrThrow(name)).recount()));
+    }
+
+    @Procedure(value="spatial.indexStats", mode=WRITE)
+    @Description("Returns the shape of the RTree index of the given layer: height, nodes and sibling overlap per level, fill histogram, dead space, leaf aspect ratios and the expected index nodes read by a query window covering the given fraction of the layer")
+    public Stream<IndexStatsResult> indexStats(
+            @Name("layerName") String name,
+            @Name(value = "queryFraction", defaultValue = "0.01") double queryFraction) {
+        Layer layer = getLayerOrThrow(name);
+        if (!(layer.getIndex() instanceof RTreeIndex)) {
+            throw new IllegalArgumentException("Layer '" + name + "' does not have an RTree index");
+        }
+        if (queryFraction <= 0.0 || queryFraction > 1.0) {
+            throw new IllegalArgumentException("Query fraction must be greater than 0 and at most 1: " + queryFraction);
+        }
+        return Stream.of(new IndexStatsResult(((RTreeIndex) layer.getIndex()).getStatistics(queryFraction)));
+    }
+
     @Procedure(value="spatial.addNode", mode=WRITE)
     @Description("Adds the given node to the layer, returns the geometry-node")
     public Stream<NodeResult> addNodeToLayer(@Name("layerName") String name, @Name("node") Node node) {
@@ -517,6 +659,62 @@ public class SpatialProcedures {
                 .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
     }
 
+    @Procedure(value="spatial.bboxMulti", mode=WRITE)
+    @Description("Finds all geometry nodes in the layer intersecting any of the windows, given as a list of maps with min and max coordinates, in one pass over the index. Each node is returned once with the positions of the windows it intersects")
+    public Stream<MultiWindowResult> findGeometriesInBBoxes(
+            @Name("layerName") String name,
+            @Name("windows") List<Map<String, Object>> windows) {
+        Layer layer = getLayerOrThrow(name);
+        List<SearchFilter> filters = new ArrayList<>(windows.size());
+        for (Map<String, Object> window : windows) {
+            if (!window.containsKey("min") || !window.containsKey("max")) {
+                throw new IllegalArgumentException("Each window needs a min and a max coordinate: " + window);
+            }
+            filters.add(new SearchIntersectWindow(layer, new Envelope(toCoordinate(window.get("min")), toCoordinate(window.get("max")))));
+        }
+        return layer.getIndex().searchIndex(filters).stream().map(result -> new MultiWindowResult(result.node,
+                result.getFilterIndexes().stream().map(Integer::longValue).collect(Collectors.toList())));
+    }
+
+    @Procedure(value="spatial.count", mode=WRITE)
+    @Description("Counts the geometries in the given layer intersecting the box given by its lower left and upper right coordinates, using the geometry counts kept in the RTree index")
+    public Stream<CountResult> countGeometriesInBBox(
+            @Name("layerName") String name,
+            @Name("min") Object min,
+            @Name("max") Object max) {
+        Layer layer = getLayerOrThrow(name);
+        Envelope envelope = new Envelope(toCoordinate(min), toCoordinate(max));
+        return Stream.of(new CountResult(getRTreeIndexOrThrow(layer).count(Utilities.fromJtsToNeo4j(envelope), new SearchIntersectWindow(layer, envelope))));
+    }
+
+    @Procedure(value="spatial.countGrid", mode=WRITE)
+    @Description("Counts the geometries in the given layer intersecting each cell of a grid of columns by rows over the box given by its lower left and upper right coordinates, for example for a heatmap. Returns one row per cell with its bounding box as [minx, miny, maxx, maxy]")
+    public Stream<GridCellResult> countGeometriesInGrid(
+            @Name("layerName") String name,
+            @Name("min") Object min,
+            @Name("max") Object max,
+            @Name("columns") long columns,
+            @Name("rows") long rows) {
+        Layer layer = getLayerOrThrow(name);
+        Envelope envelope = new Envelope(toCoordinate(min), toCoordinate(max));
+        long[][] counts = getRTreeIndexOrThrow(layer).countGrid(Utilities.fromJtsToNeo4j(envelope), (int) columns, (int) rows,
+                cell -> new SearchIntersectWindow(layer, cell));
+        double cellWidth = envelope.getWidth() / columns;
+        double cellHeight = envelope.getHeight() / rows;
+        List<GridCellResult> cells = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                List<Double> bbox = Arrays.asList(
+                        envelope.getMinX() + column * cellWidth,
+                        envelope.getMinY() + row * cellHeight,
+                        column == columns - 1 ? envelope.getMaxX() : envelope.getMinX() + (column + 1) * cellWidth,
+                        row == rows - 1 ? envelope.getMaxY() : envelope.getMinY() + (row + 1) * cellHeight);
+                cells.add(new GridCellResult(column, row, bbox, counts[row][column]));
+            }
+        }
+        return cells.stream();
+    }
+
     @Procedure(value="spatial.closest", mode=WRITE)
     @Description("Finds all geometry nodes in the layer within the distance to the given coordinate")
     public Stream<NodeResult> findClosestGeometries(
@@ -547,6 +745,39 @@ public class SpatialProcedures {
                 });
     }
 
+    @Procedure(value="spatial.knn", mode=WRITE)
+    @Description("Returns the k geometry nodes nearest to the given coordinate, ordered by distance. Distances are in km, except for layers with a projected CRS where they are in the units of the layer")
+    public Stream<NodeDistanceResult> findKNearestGeometries(
+            @Name("layerName") String name,
+            @Name("coordinate") Object coordinate,
+            @Name("k") long k) {
+
+        if (k < 1 || k > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("k must be at least 1 and at most " + Integer.MAX_VALUE + ": " + k);
+        }
+        Layer layer = getLayerOrThrow(name);
+        CoordinateReferenceSystem crs = layer.getCoordinateReferenceSystem();
+        boolean geographic = crs == null || crs instanceof GeographicCRS;
+        String distanceProperty = geographic ? OrthodromicDistance.DISTANCE : "Distance";
+        GeoPipeline pipeline = geographic ?
+                GeoPipeline.startKNearestNeighborLatLonSearch(layer, toCoordinate(coordinate), (int) k) :
+                GeoPipeline.startKNearestNeighborSearch(layer, toCoordinate(coordinate), (int) k);
+        return pipeline.stream().map(r -> {
+            double distance = r.hasProperty(distanceProperty) ? ((Number) r.getProperty(distanceProperty)).doubleValue() : -1;
+            return new NodeDistanceResult(r.getGeomNode(), distance);
+        });
+    }
+
+    @Procedure(value="spatial.join", mode=WRITE)
+    @Description("Returns all pairs of geometry nodes of the two layers for which the predicate holds, with the geometry of the first layer as the subject. The predicate is one of intersects, contains, within, covers, coveredBy, overlaps, touches or crosses")
+    public Stream<JoinResult> join(
+            @Name("leftLayerName") String leftName,
+            @Name("rightLayerName") String rightName,
+            @Name(value = "predicate", defaultValue = "intersects") String predicate) {
+        SpatialJoin join = new SpatialJoin(getLayerOrThrow(leftName), getLayerOrThrow(rightName), SpatialJoin.Predicate.fromName(predicate));
+        return join.stream().map(match -> new JoinResult(match.left, match.right));
+    }
+
     @UserFunction("spatial.decodeGeometry")
     @Description("Returns a geometry of a layer node as the Neo4j geometry type, to be passed to other procedures or returned to a client")
     public Object decodeGeometry(
@@ -860,6 +1091,13 @@ public class SpatialProcedures {
         return getLayerOrThrow(wrap(db), name);
     }
 
+    private static RTreeIndex getRTreeIndexOrThrow(Layer layer) {
+        if (!(layer.getIndex() instanceof RTreeIndex)) {
+            throw new IllegalArgumentException("Layer '" + layer.getName() + "' does not have an RTree index");
+        }
+        return (RTreeIndex) layer.getIndex();
+    }
+
     private Layer getLayerOrThrow(SpatialDatabaseService spatialService, String name) {
         EditableLayer layer = (EditableLayer) spatialService.getLayer(name);
         if (layer != null) {
@@ -19,6 +19,8 @@
  */
 package org.neo4j.gis.spatial.rtree;
 
+import java.util.Arrays;
+
 public class Envelope extends org.neo4j.gis.spatial.index.Envelope {
 
     /**
@@ -49,6 +51,59 @@ public class Envelope extends org.neo4j.gis.spatial.index.Envelope {
         super(xmin, xmax, ymin, ymax);
     }
 
+    /**
+     * Constructor for a bounding box laid out like those of the index nodes: all the minimums and then all the
+     * maximums, so xmin, ymin, xmax, ymax in 2D and xmin, ymin, zmin, xmax, ymax, zmax in 3D.
+     */
+    public static Envelope fromBBox(double[] bbox) {
+        int dimension = bbox.length / 2;
+        return new Envelope(Arrays.copyOfRange(bbox, 0, dimension), Arrays.copyOfRange(bbox, dimension, 2 * dimension));
+    }
+
+    /**
+     * This envelope as a bounding box laid out like those of the index nodes, see fromBBox.
+     */
+    public double[] toBBox() {
+        double[] bbox = new double[2 * min.length];
+        toBBox(bbox);
+        return bbox;
+    }
+
+    public void toBBox(double[] bbox) {
+        System.arraycopy(min, 0, bbox, 0, min.length);
+        System.arraycopy(max, 0, bbox, min.length, max.length);
+    }
+
+    /**
+     * Same test as intersects(Envelope) for a bounding box laid out like those of the index nodes. The bounding box
+     * may have more dimensions than this envelope, which is then unbounded in the others, so that a 2D window can
+     * search a tree with z or time as further dimensions. Dimensions of this envelope that the bounding box does not
+     * have are ignored, so a 3D window can search a 2D tree.
+     */
+    public boolean intersects(double[] bbox) {
+        int dimension = bbox.length / 2;
+        for (int i = 0; i < Math.min(min.length, dimension); i++) {
+            if (bbox[i] > max[i] || bbox[dimension + i] < min[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same test as covers(Envelope) for a bounding box laid out like those of the index nodes, with the dimensions
+     * this envelope does not have left unbounded as for intersects(double[]).
+     */
+    public boolean covers(double[] bbox) {
+        int dimension = bbox.length / 2;
+        for (int i = 0; i < Math.min(min.length, dimension); i++) {
+            if (bbox[i] < min[i] || bbox[dimension + i] > max[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Note that this doesn't exclude the envelope boundary.
      * See JTS Envelope.
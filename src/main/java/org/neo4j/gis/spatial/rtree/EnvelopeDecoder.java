@@ -26,4 +26,21 @@ public interface EnvelopeDecoder {
 
     Envelope decodeEnvelope(PropertyContainer container);
 
+    /**
+     * Decode the envelope into a bounding box laid out like those of the index nodes: the minimums and then the
+     * maximums, so xmin, ymin, xmax, ymax in 2D. The array is sized for the dimensions of the index. Decoders that
+     * read a stored bounding box should override this, so that searches can check geometries without creating an
+     * Envelope for each of them.
+     *
+     * @return false if there is no envelope with the dimensions of the array to decode
+     */
+    default boolean decodeBBox(PropertyContainer container, double[] bbox) {
+        Envelope envelope = decodeEnvelope(container);
+        if (envelope == null || 2 * envelope.getDimension() != bbox.length) {
+            return false;
+        }
+        envelope.toBBox(bbox);
+        return true;
+    }
+
 }
\ No newline at end of file
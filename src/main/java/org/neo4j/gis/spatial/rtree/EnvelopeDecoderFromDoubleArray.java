@@ -19,12 +19,14 @@
  */
 package org.neo4j.gis.spatial.rtree;
 
+import org.apache.commons.lang.ArrayUtils;
 import org.neo4j.graphdb.PropertyContainer;
 
 
 /**
  * 
- * The property must contain an array of double: xmin, ymin, xmax, ymax.
+ * The property must contain an array of double: xmin, ymin, xmax, ymax, or in more dimensions all the minimums
+ * followed by all the maximums, like xmin, ymin, zmin, xmax, ymax, zmax.
  */
 public class EnvelopeDecoderFromDoubleArray implements EnvelopeDecoder {
 
@@ -37,16 +39,40 @@ public class EnvelopeDecoderFromDoubleArray implements EnvelopeDecoder {
 	    Object propValue = container.getProperty(propertyName);
 	    
 	    if (propValue instanceof Double[]) {
-	    	Double[] bbox = (Double[]) propValue;
-			return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+			return Envelope.fromBBox(ArrayUtils.toPrimitive((Double[]) propValue));
 		} else if (propValue instanceof double[]) {
-			double[] bbox = (double[]) propValue;
-			return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+			return Envelope.fromBBox((double[]) propValue);
 	    } else {
             // invalid content
             return new Envelope(new double[0]);
 	    }
 	}
 
+	@Override
+	public boolean decodeBBox(PropertyContainer container, double[] bbox) {
+		Object propValue = container.getProperty(propertyName);
+
+		if (propValue instanceof Double[]) {
+			Double[] value = (Double[]) propValue;
+			if (value.length != bbox.length) {
+				return false;
+			}
+			for (int i = 0; i < bbox.length; i++) {
+				bbox[i] = value[i];
+			}
+			return true;
+		} else if (propValue instanceof double[]) {
+			double[] value = (double[]) propValue;
+			if (value.length != bbox.length) {
+				return false;
+			}
+			System.arraycopy(value, 0, bbox, 0, bbox.length);
+			return true;
+		} else {
+			// invalid content
+			return false;
+		}
+	}
+
 	private String propertyName;
 }
\ No newline at end of file
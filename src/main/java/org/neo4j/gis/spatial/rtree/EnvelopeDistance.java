@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+/**
+ * The minimum distance from a point to anything that can be contained in an envelope. This is the lower bound used
+ * to order the nearest neighbour search in the RTreeIndex, so it must never be larger than the real distance to any
+ * geometry inside the envelope.
+ */
+public interface EnvelopeDistance {
+
+	double minimumDistance(double[] point, Envelope envelope);
+
+	/**
+	 * Euclidean distance in the units of the coordinates, for any number of dimensions.
+	 */
+	EnvelopeDistance CARTESIAN = new Cartesian();
+
+	/**
+	 * Great circle distance in km, for envelopes in longitude / latitude degrees.
+	 */
+	EnvelopeDistance ORTHODROMIC = new Orthodromic();
+
+	class Cartesian implements EnvelopeDistance {
+
+		@Override
+		public double minimumDistance(double[] point, Envelope envelope) {
+			double sum = 0.0;
+			for (int i = 0; i < point.length; i++) {
+				double delta = 0.0;
+				if (point[i] < envelope.getMin(i)) {
+					delta = envelope.getMin(i) - point[i];
+				} else if (point[i] > envelope.getMax(i)) {
+					delta = point[i] - envelope.getMax(i);
+				}
+				sum += delta * delta;
+			}
+			return Math.sqrt(sum);
+		}
+	}
+
+	class Orthodromic implements EnvelopeDistance {
+
+		// Same radius as used by OrthodromicDistance, so that bounds and refined distances are comparable
+		public static final double EARTH_RADIUS_IN_KM = 6371;
+
+		@Override
+		public double minimumDistance(double[] point, Envelope envelope) {
+			double lon = point[0];
+			double lat = point[1];
+			if (lon >= envelope.getMinX() && lon <= envelope.getMaxX()) {
+				// the closest point is straight north or south along the meridian
+				if (lat < envelope.getMinY()) {
+					return Math.toRadians(envelope.getMinY() - lat) * EARTH_RADIUS_IN_KM;
+				} else if (lat > envelope.getMaxY()) {
+					return Math.toRadians(lat - envelope.getMaxY()) * EARTH_RADIUS_IN_KM;
+				} else {
+					return 0.0;
+				}
+			}
+			// otherwise the closest point lies on one of the two meridian edges
+			return Math.min(
+					distanceToMeridianSegment(lon, lat, envelope.getMinX(), envelope.getMinY(), envelope.getMaxY()),
+					distanceToMeridianSegment(lon, lat, envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY()));
+		}
+
+		/**
+		 * The latitude on a meridian closest to the point is atan(tan(lat) / cos(deltaLon)), and the distance grows
+		 * monotonically away from it, so clamping it to the segment gives the closest point of the segment.
+		 */
+		private static double distanceToMeridianSegment(double lon, double lat, double meridian, double minLat, double maxLat) {
+			double deltaLon = Math.toRadians(meridian - lon);
+			double latRad = Math.toRadians(lat);
+			double closest = Math.toDegrees(Math.atan2(Math.sin(latRad), Math.cos(latRad) * Math.cos(deltaLon)));
+			closest = Math.max(minLat, Math.min(maxLat, Math.max(-90.0, Math.min(90.0, closest))));
+			return distance(lon, lat, meridian, closest);
+		}
+
+		private static double distance(double lon1, double lat1, double lon2, double lat2) {
+			double cosDistance = Math.sin(Math.toRadians(lat1)) * Math.sin(Math.toRadians(lat2))
+					+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.cos(Math.toRadians(lon2 - lon1));
+			return Math.acos(Math.max(-1.0, Math.min(cosDistance, 1.0))) * EARTH_RADIUS_IN_KM;
+		}
+	}
+}
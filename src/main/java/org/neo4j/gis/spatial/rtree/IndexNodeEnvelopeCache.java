@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Cache of the bounding boxes of the index nodes of one RTree, keyed by node id. The ids and the boxes are kept in
+ * primitive arrays (open addressing with linear probing, one bounding box per slot), so a lookup neither allocates nor
+ * touches the property store.
+ * <p>
+ * There is one cache per index root and database, shared by all RTreeIndex instances on that layer, so it only holds
+ * committed bounding boxes. The RTreeIndex invalidates entries as it writes them, which also stops the writing thread
+ * from filling the cache until its transaction ends, as it would read its own uncommitted boxes. A transaction event
+ * handler invalidates everything changed by a commit from any thread. Every invalidation bumps a version, and a
+ * reader only fills the cache if the version did not change since it started reading the box, so a box read just
+ * before another transaction commits a new one is not cached after that commit invalidated it.
+ */
+public class IndexNodeEnvelopeCache {
+
+	private static final long FREE = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static final Map<GraphDatabaseService, DatabaseCaches> databases = new WeakHashMap<>();
+
+	// set on the thread of a transaction that changed bounding boxes of the tree, until it commits or rolls back
+	private static final ThreadLocal<Boolean> writing = ThreadLocal.withInitial(() -> false);
+
+	private int maxSize;
+	// the length of the bounding boxes of the tree, which all have the same number of dimensions
+	private int stride = 4;
+	private long[] ids;
+	private double[] boxes;
+	private int size;
+	private long version;
+
+	IndexNodeEnvelopeCache(int maxSize) {
+		this.maxSize = maxSize;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Find the shared cache for the tree attached to the given layer node. The maximum size is only applied when the
+	 * cache is created, so constructing another index on the layer does not resize the cache of the others; it is
+	 * changed by configuring the index with another size, as the stored configuration of the layer does.
+	 */
+	public static IndexNodeEnvelopeCache forIndex(GraphDatabaseService database, Node layerNode, int maxSize) {
+		DatabaseCaches caches;
+		synchronized (databases) {
+			caches = databases.get(database);
+			if (caches == null) {
+				caches = new DatabaseCaches();
+				database.registerTransactionEventHandler(caches);
+				databases.put(database, caches);
+			}
+		}
+		return caches.caches.computeIfAbsent(layerNode.getId(), id -> new IndexNodeEnvelopeCache(maxSize));
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (size > maxSize) {
+			clear();
+		}
+	}
+
+	/**
+	 * Copy the cached bounding box of the index node into the given array.
+	 *
+	 * @return false if the index node is not cached
+	 */
+	public synchronized boolean get(long id, double[] bbox) {
+		if (bbox.length != stride) {
+			return false;
+		}
+		int slot = find(id);
+		if (slot < 0) {
+			return false;
+		}
+		System.arraycopy(boxes, slot * stride, bbox, 0, stride);
+		return true;
+	}
+
+	/**
+	 * The current version, to be read before the bounding box to cache is read from the index node.
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Cache the bounding box of the index node, read from committed state since the given version was taken. It is
+	 * not cached if the version changed in the meantime, or if this thread has written to the tree.
+	 */
+	public synchronized void put(long id, double[] bbox, long readVersion) {
+		if (maxSize <= 0 || readVersion != version || writing.get()) {
+			return;
+		}
+		if (bbox.length != stride) {
+			// the dimensions of the tree were changed while it was empty
+			stride = bbox.length;
+			allocate(INITIAL_CAPACITY);
+			size = 0;
+		}
+		int slot = find(id);
+		if (slot < 0) {
+			if (size >= maxSize) {
+				// the upper levels of the tree are read first, so they will be back after a few queries
+				clear();
+			}
+			if ((size + 1) * 2 > ids.length) {
+				rehash(ids.length * 2);
+			}
+			slot = freeSlot(id);
+			ids[slot] = id;
+			size++;
+		}
+		System.arraycopy(bbox, 0, boxes, slot * stride, stride);
+	}
+
+	/**
+	 * Forget the bounding box of an index node that the transaction of this thread is about to change, and stop this
+	 * thread from caching bounding boxes until that transaction ends.
+	 */
+	public void invalidate(long id) {
+		writing.set(true);
+		remove(id);
+	}
+
+	/**
+	 * Forget all bounding boxes, as the transaction of this thread is about to replace the tree, and stop this thread
+	 * from caching bounding boxes until that transaction ends.
+	 */
+	public void invalidateAll() {
+		writing.set(true);
+		clear();
+	}
+
+	public synchronized void remove(long id) {
+		version++;
+		int slot = find(id);
+		if (slot < 0) {
+			return;
+		}
+		// backward shift deletion keeps the probe sequences of the following entries intact
+		int mask = ids.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (ids[next] != FREE) {
+			int home = hash(ids[next]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				ids[hole] = ids[next];
+				System.arraycopy(boxes, next * stride, boxes, hole * stride, stride);
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		ids[hole] = FREE;
+		size--;
+	}
+
+	public synchronized void clear() {
+		version++;
+		if (ids.length > INITIAL_CAPACITY) {
+			allocate(INITIAL_CAPACITY);
+		} else {
+			Arrays.fill(ids, FREE);
+		}
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private int find(long id) {
+		int mask = ids.length - 1;
+		int slot = hash(id) & mask;
+		while (ids[slot] != FREE) {
+			if (ids[slot] == id) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int freeSlot(long id) {
+		int mask = ids.length - 1;
+		int slot = hash(id) & mask;
+		while (ids[slot] != FREE) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldIds = ids;
+		double[] oldBoxes = boxes;
+		allocate(capacity);
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] != FREE) {
+				int slot = freeSlot(oldIds[i]);
+				ids[slot] = oldIds[i];
+				System.arraycopy(oldBoxes, i * stride, boxes, slot * stride, stride);
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		ids = new long[capacity];
+		Arrays.fill(ids, FREE);
+		boxes = new double[capacity * stride];
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static class DatabaseCaches extends TransactionEventHandler.Adapter<Object> {
+		private final Map<Long, IndexNodeEnvelopeCache> caches = new ConcurrentHashMap<>();
+
+		@Override
+		public void afterCommit(TransactionData data, Object state) {
+			if (caches.isEmpty()) {
+				writing.remove();
+				return;
+			}
+			for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+				if (entry.key().equals(RTreeIndex.INDEX_PROP_BBOX)) {
+					invalidate(entry.entity().getId());
+				}
+			}
+			for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+				if (entry.key().equals(RTreeIndex.INDEX_PROP_BBOX)) {
+					invalidate(entry.entity().getId());
+				}
+			}
+			for (Node node : data.deletedNodes()) {
+				invalidate(node.getId());
+			}
+			// the changes of this thread are committed and invalidated, it may fill the caches again
+			writing.remove();
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			writing.remove();
+		}
+
+		private void invalidate(long id) {
+			for (IndexNodeEnvelopeCache cache : caches.values()) {
+				cache.remove(id);
+			}
+		}
+	}
+}
@@ -19,28 +19,45 @@
  */
 package org.neo4j.gis.spatial.rtree;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.neo4j.gis.spatial.index.SpatialIndexWriter;
 import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
+import org.neo4j.gis.spatial.rtree.filter.MultiSearchResult;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
+import org.neo4j.gis.spatial.utilities.ShutdownHandler;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
-import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.traversal.Evaluation;
-import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.helpers.collection.Iterators;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.internal.LogService;
 
 /**
  *
@@ -52,9 +69,26 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     public static final String KEY_SPLIT = "splitMode";
     public static final String QUADRATIC_SPLIT = "quadratic";
     public static final String GREENES_SPLIT = "greene";
+    public static final String RSTAR_SPLIT = "rstar";
+
+    public static final String KEY_BULK_LOAD = "bulkLoadMode";
+    public static final String OMT_BULK_LOAD = "omt";
+    public static final String STR_BULK_LOAD = "str";
 
     public static final String KEY_MAX_NODE_REFERENCES = "maxNodeReferences";
     public static final String KEY_SHOULD_MERGE_TREES = "shouldMergeTrees";
+    public static final String KEY_ENVELOPE_CACHE_SIZE = "envelopeCacheSize";
+    public static final int DEFAULT_ENVELOPE_CACHE_SIZE = 100000;
+    public static final String KEY_SEARCH_PARALLELISM = "searchParallelism";
+    public static final String KEY_PACKED_CHILD_ENVELOPES = "packedChildEnvelopes";
+    public static final String KEY_CONCURRENT_INSERT = "concurrentInsert";
+    public static final String KEY_WRITE_BUFFER_SIZE = "writeBufferSize";
+    public static final String KEY_DIMENSIONS = "dimensions";
+    public static final int DEFAULT_DIMENSIONS = 2;
+    public static final String INDEX_PROP_CHILD_IDS = "childIds";
+    public static final String INDEX_PROP_CHILD_BBOXES = "childBBoxes";
+    public static final String INDEX_PROP_CHILD_COUNT = "childCount";
+    public static final String INDEX_PROP_GEOMETRY_COUNT = "geometryCount";
     public static final long MIN_MAX_NODE_REFERENCES = 10;
     public static final long MAX_MAX_NODE_REFERENCES = 1000000;
 
@@ -78,6 +112,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 			throw new NullPointerException("envelopeDecoder is NULL");
 		}
 
+		envelopeCache = IndexNodeEnvelopeCache.forIndex(database, rootNode, envelopeCacheSize);
 		initIndexRoot();
 		initIndexMetadata();
 	}
@@ -101,8 +136,15 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     public String getConfiguration() {
         HashMap<String, Object> config = new HashMap<>();
         config.put(KEY_SPLIT, this.splitMode);
+        config.put(KEY_BULK_LOAD, this.bulkLoadMode);
         config.put(KEY_MAX_NODE_REFERENCES, this.maxNodeReferences);
         config.put(KEY_SHOULD_MERGE_TREES, this.shouldMergeTrees);
+        config.put(KEY_ENVELOPE_CACHE_SIZE, this.envelopeCacheSize);
+        config.put(KEY_SEARCH_PARALLELISM, this.searchParallelism);
+        config.put(KEY_PACKED_CHILD_ENVELOPES, this.packedChildEnvelopes);
+        config.put(KEY_CONCURRENT_INSERT, this.concurrentInsert);
+        config.put(KEY_WRITE_BUFFER_SIZE, this.writeBufferSize);
+        config.put(KEY_DIMENSIONS, this.dimensions);
         return JSONObject.toJSONString(config);
     }
 
@@ -114,12 +156,24 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                     switch (value) {
                         case QUADRATIC_SPLIT:
                         case GREENES_SPLIT:
+                        case RSTAR_SPLIT:
                             splitMode = value;
                             break;
                         default:
                             throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + value);
                     }
                     break;
+                case KEY_BULK_LOAD:
+                    String mode = config.get(key).toString();
+                    switch (mode) {
+                        case OMT_BULK_LOAD:
+                        case STR_BULK_LOAD:
+                            bulkLoadMode = mode;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + mode);
+                    }
+                    break;
                 case KEY_MAX_NODE_REFERENCES:
                     int intValue = Integer.parseInt(config.get(key).toString());
                     if (intValue < MIN_MAX_NODE_REFERENCES) {
@@ -133,6 +187,43 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 case KEY_SHOULD_MERGE_TREES:
                     this.shouldMergeTrees = Boolean.parseBoolean(config.get(key).toString());
                     break;
+                case KEY_ENVELOPE_CACHE_SIZE:
+                    int cacheSize = Integer.parseInt(config.get(key).toString());
+                    if (cacheSize < 0) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+                    }
+                    this.envelopeCacheSize = cacheSize;
+                    if (envelopeCache != null) {
+                        envelopeCache.setMaxSize(cacheSize);
+                    }
+                    break;
+                case KEY_SEARCH_PARALLELISM:
+                    int parallelism = Integer.parseInt(config.get(key).toString());
+                    if (parallelism < 1) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 1");
+                    }
+                    this.searchParallelism = parallelism;
+                    break;
+                case KEY_PACKED_CHILD_ENVELOPES:
+                    setPackedChildEnvelopes(Boolean.parseBoolean(config.get(key).toString()));
+                    break;
+                case KEY_CONCURRENT_INSERT:
+                    this.concurrentInsert = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_WRITE_BUFFER_SIZE:
+                    int bufferSize = Integer.parseInt(config.get(key).toString());
+                    if (bufferSize < 0) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+                    }
+                    this.writeBufferSize = bufferSize;
+                    break;
+                case KEY_DIMENSIONS:
+                    int dimensionCount = Integer.parseInt(config.get(key).toString());
+                    if (dimensionCount < 2) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 2");
+                    }
+                    setDimensions(dimensionCount);
+                    break;
                 default:
                     throw new IllegalArgumentException("No such RTreeIndex configuration key: " + key);
             }
@@ -141,13 +232,28 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public void add(Node geomNode) {
-		// initialize the search with root
-		Node parent = getIndexRoot();
+		if (writeBufferSize > 0) {
+			addToBuffer(geomNode);
+		} else {
+			addToTree(geomNode);
+		}
+	}
+
+	private void addToTree(Node geomNode) {
+		if (concurrentInsert) {
+			addConcurrently(geomNode);
+		} else if (splitMode.equals(RSTAR_SPLIT)) {
+			insertAtLevel(geomNode, getLeafNodeEnvelope(geomNode), 0, new HashSet<>());
+		} else {
+			// initialize the search with root
+			Node parent = getIndexRoot();
 
-		addBelow(parent, geomNode);
+			addBelow(parent, geomNode);
+		}
 
-		countSaved = false;
-		totalGeometryCount++;
+		if (!concurrentInsert) {
+			adjustCount(1);
+		}
 	}
 
 	/**
@@ -170,6 +276,484 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 
+	/**
+	 * Insert for several transactions writing to the same tree at once. Neo4j keeps write locks until the end of the
+	 * transaction, so the usual insert, which expands the bounding boxes all the way up to the root, makes writers
+	 * into one layer wait for each other. Here the path down is chosen without locks and only the leaf is locked and
+	 * written. The expansion of the bounding boxes above the leaf is remembered and done when the transaction commits,
+	 * for all geometries of the transaction at once, locking the index nodes top-down in a fixed order, so the upper
+	 * levels of the tree are only locked for the duration of the commit.
+	 * <p>
+	 * Inserts that split a node, or go into a tree that is a single leaf, change the structure of the tree. Those lock
+	 * the whole path from the root down, as they would otherwise be locked in the wrong order, and then insert as
+	 * usual. A writer can still deadlock with one that splits, which Neo4j detects and reports as a
+	 * DeadlockDetectedException, and the transaction should be retried. The forced reinsertion of the R* split mode
+	 * is not done in this mode. The geometry count of the index is also updated when the transaction commits.
+	 * <p>
+	 * The descent without locks only reads: it neither packs the child envelopes nor stores a missing child count.
+	 * As the bounding boxes above the leaf are only expanded at commit, a search later in the same transaction may
+	 * not visit the leaf and then misses the geometries added to it by that transaction. Other transactions only
+	 * see them after the commit anyway, so this only matters for a transaction that searches what it just added,
+	 * which should use the usual insert instead.
+	 */
+	private void addConcurrently(Node geomNode) {
+		Envelope geomEnvelope = getLeafNodeEnvelope(geomNode);
+		double[] geomBBox = toBBox(geomEnvelope);
+		try (Transaction tx = database.beginTx()) {
+			for (int attempt = 0; attempt < CONCURRENT_INSERT_ATTEMPTS; attempt++) {
+				Node leaf = getIndexRoot();
+				while (!nodeIsLeaf(leaf)) {
+					leaf = chooseSubTree(getIndexChildren(leaf), geomEnvelope);
+				}
+				if (getIndexNodeParent(leaf) == null || readChildCount(leaf, RTreeRelationshipTypes.RTREE_REFERENCE) >= maxNodeReferences) {
+					break;
+				}
+				tx.acquireWriteLock(leaf);
+				// the path was chosen without locks, so check it is still a leaf in this tree with room to spare
+				if (nodeIsLeaf(leaf) && isInTree(leaf) && countChildren(leaf, RTreeRelationshipTypes.RTREE_REFERENCE) < maxNodeReferences) {
+					leaf.createRelationshipTo(geomNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+					adjustChildCount(leaf, 1);
+					expandLeafBoundingBox(leaf, geomBBox);
+					DeferredExpansions.forDatabase(database).defer(this, leaf.getId());
+					DeferredExpansions.forDatabase(database).deferCount(this, 1);
+					tx.success();
+					return;
+				}
+			}
+
+			Node leaf;
+			do {
+				leaf = getIndexRoot();
+				while (!nodeIsLeaf(leaf)) {
+					leaf = chooseSubTree(getIndexChildren(leaf), geomEnvelope);
+				}
+				lockPathTopDown(tx, leaf);
+			} while (!isInTree(leaf));
+			addBelow(leaf, geomNode);
+			DeferredExpansions.forDatabase(database).deferCount(this, 1);
+			tx.success();
+		}
+	}
+
+	private static final int CONCURRENT_INSERT_ATTEMPTS = 3;
+
+	/**
+	 * Like expandParentBoundingBoxAfterNewChild, but without writing the packed envelope of the leaf on its parent,
+	 * which would lock the parent. That is done with the rest of the deferred expansion.
+	 */
+	private void expandLeafBoundingBox(Node leaf, double[] childBBox) {
+		invalidateIndexNodeEnvelope(leaf);
+		double[] bbox = (double[]) leaf.getProperty(INDEX_PROP_BBOX, null);
+		if (bbox == null) {
+			leaf.setProperty(INDEX_PROP_BBOX, childBBox.clone());
+		} else if (expandBBox(bbox, childBBox)) {
+			leaf.setProperty(INDEX_PROP_BBOX, bbox);
+		}
+	}
+
+	private boolean isInTree(Node indexNode) {
+		Node root = getIndexRoot();
+		for (Node node = indexNode; node != null; node = getIndexNodeParent(node)) {
+			if (node.equals(root)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the path from the index root down to the index node
+	 */
+	private List<Node> getPathFromRoot(Node indexNode) {
+		LinkedList<Node> path = new LinkedList<>();
+		for (Node node = indexNode; node != null; node = getIndexNodeParent(node)) {
+			path.addFirst(node);
+		}
+		return path;
+	}
+
+	/**
+	 * Lock the index nodes from the root down to the given node, and repeat until the locked path is still the path
+	 * of the node, since it was read before the locks were taken.
+	 */
+	private void lockPathTopDown(Transaction tx, Node indexNode) {
+		List<Node> path = getPathFromRoot(indexNode);
+		while (true) {
+			for (Node node : path) {
+				tx.acquireWriteLock(node);
+			}
+			List<Node> current = getPathFromRoot(indexNode);
+			if (current.equals(path)) {
+				return;
+			}
+			path = current;
+		}
+	}
+
+	/**
+	 * Expand the bounding boxes above the leaves written by addConcurrently in this transaction. Every index node
+	 * above them is expanded once to include all of them, and all are locked in the same order, by depth from the
+	 * root and then by id, so two transactions merging at the same time cannot deadlock on each other. The geometry
+	 * counts of the locked index nodes are then recomputed from their children.
+	 */
+	private void mergeDeferredExpansions(Transaction tx, Collection<Long> leafIds) {
+		List<Node> leaves = new ArrayList<>();
+		for (long leafId : leafIds) {
+			try {
+				Node leaf = database.getNodeById(leafId);
+				if (leaf.hasProperty(INDEX_PROP_BBOX)) {
+					leaves.add(leaf);
+				}
+			} catch (NotFoundException e) {
+				// merged into another node by a later insert of this transaction
+			}
+		}
+
+		Map<Node, double[]> expansions;
+		Map<Node, Integer> depths;
+		boolean pathsChanged;
+		do {
+			expansions = new HashMap<>();
+			depths = new HashMap<>();
+			Map<Node, Node> parents = new HashMap<>();
+			for (Node leaf : leaves) {
+				double[] leafBBox = (double[]) leaf.getProperty(INDEX_PROP_BBOX);
+				List<Node> path = getPathFromRoot(leaf);
+				for (int depth = 0; depth < path.size() - 1; depth++) {
+					Node node = path.get(depth);
+					depths.put(node, depth);
+					parents.put(path.get(depth + 1), node);
+					double[] expansion = expansions.get(node);
+					if (expansion == null) {
+						expansions.put(node, leafBBox.clone());
+					} else {
+						expandBBox(expansion, leafBBox);
+					}
+				}
+			}
+			final Map<Node, Integer> order = depths;
+			List<Node> nodes = new ArrayList<>(expansions.keySet());
+			nodes.sort(Comparator.<Node>comparingInt(order::get).thenComparingLong(Node::getId));
+			for (Node node : nodes) {
+				tx.acquireWriteLock(node);
+			}
+			// another transaction could have split one of these nodes between reading the paths and locking them
+			pathsChanged = false;
+			for (Map.Entry<Node, Node> entry : parents.entrySet()) {
+				if (!entry.getValue().equals(getIndexNodeParent(entry.getKey()))) {
+					pathsChanged = true;
+				}
+			}
+		} while (pathsChanged);
+
+		List<Node> nodes = new ArrayList<>(expansions.keySet());
+		final Map<Node, Integer> order = depths;
+		nodes.sort(Comparator.<Node>comparingInt(order::get).thenComparingLong(Node::getId));
+		for (Node node : nodes) {
+			expandParentBoundingBoxAfterNewChild(node, expansions.get(node));
+		}
+		for (Node leaf : leaves) {
+			updatePackedChildEnvelope(leaf, (double[]) leaf.getProperty(INDEX_PROP_BBOX));
+		}
+
+		// the geometry counts above the leaves were not changed by the inserts, recount them from the bottom up
+		Map<Node, Integer> countDepths = new HashMap<>(depths);
+		for (Node leaf : leaves) {
+			countDepths.put(leaf, getPathFromRoot(leaf).size() - 1);
+		}
+		List<Node> counted = new ArrayList<>(countDepths.keySet());
+		counted.sort(Comparator.<Node>comparingInt(countDepths::get).reversed());
+		for (Node node : counted) {
+			refreshGeometryCount(node);
+		}
+	}
+
+	/**
+	 * The leaves written by addConcurrently, and the number of geometries added, per thread since a Neo4j transaction belongs to one thread, and merged
+	 * before the transaction commits. There is one of these per database, shared by all RTreeIndex instances.
+	 */
+	private static class DeferredExpansions extends TransactionEventHandler.Adapter<Object> {
+		private static final Map<GraphDatabaseService, DeferredExpansions> databases = new WeakHashMap<>();
+
+		private final ThreadLocal<Map<RTreeIndex, Pending>> pending = ThreadLocal.withInitial(IdentityHashMap::new);
+
+		static DeferredExpansions forDatabase(GraphDatabaseService database) {
+			synchronized (databases) {
+				DeferredExpansions expansions = databases.get(database);
+				if (expansions == null) {
+					expansions = new DeferredExpansions();
+					database.registerTransactionEventHandler(expansions);
+					databases.put(database, expansions);
+				}
+				return expansions;
+			}
+		}
+
+		private static class Pending {
+			private final Set<Long> leafIds = new LinkedHashSet<>();
+			private int geometries = 0;
+		}
+
+		void defer(RTreeIndex index, long leafId) {
+			pending.get().computeIfAbsent(index, i -> new Pending()).leafIds.add(leafId);
+		}
+
+		void deferCount(RTreeIndex index, int geometries) {
+			pending.get().computeIfAbsent(index, i -> new Pending()).geometries += geometries;
+		}
+
+		/**
+		 * An index node written by addConcurrently is being deleted in the same transaction, so merge at the node that
+		 * took over its children, or at its parent, instead.
+		 */
+		void replace(RTreeIndex index, long nodeId, long replacementId) {
+			Pending indexPending = pending.get().get(index);
+			if (indexPending != null && indexPending.leafIds.remove(nodeId)) {
+				indexPending.leafIds.add(replacementId);
+			}
+		}
+
+		@Override
+		public Object beforeCommit(TransactionData data) {
+			Map<RTreeIndex, Pending> indexes = pending.get();
+			if (indexes.isEmpty()) {
+				return null;
+			}
+			pending.remove();
+			// the database is taken from the indexes, holding it here would keep it from being garbage collected
+			try (Transaction tx = indexes.keySet().iterator().next().database.beginTx()) {
+				for (Map.Entry<RTreeIndex, Pending> entry : indexes.entrySet()) {
+					if (!entry.getValue().leafIds.isEmpty()) {
+						entry.getKey().mergeDeferredExpansions(tx, entry.getValue().leafIds);
+					}
+					// after the index nodes, so the metadata node is always locked last
+					if (entry.getValue().geometries != 0) {
+						entry.getKey().adjustCount(entry.getValue().geometries);
+					}
+				}
+				tx.success();
+			}
+			return null;
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			pending.remove();
+		}
+	}
+
+	private static double[] toBBox(Envelope envelope) {
+		return envelope.toBBox();
+	}
+
+	/*
+	 * Write buffer: with KEY_WRITE_BUFFER_SIZE above zero, add(Node) does not descend the tree but attaches the
+	 * geometry to a buffer node next to the tree, and writes nothing else, so writers do not update the geometry
+	 * count or any bounding box. The number of buffered geometries is the degree of the buffer node, and their
+	 * bounding box is only computed when needed. When a transaction that filled the buffer commits, the buffer is
+	 * merged into the tree with add(List) in a transaction of its own on the common fork join pool, so the tree is
+	 * only changed by bulk insertions, outside of the transactions of the writers. Searches, counts and removals look
+	 * at the buffer as well. The buffer is found through the graph, so an index that is not configured with a buffer
+	 * still sees the geometries left in one.
+	 */
+
+	private void addToBuffer(Node geomNode) {
+		Node bufferNode = getBufferNode(true);
+		bufferNode.createRelationshipTo(geomNode, RTreeRelationshipTypes.RTREE_BUFFERED);
+		if (bufferNode.getDegree(RTreeRelationshipTypes.RTREE_BUFFERED, Direction.OUTGOING) >= writeBufferSize) {
+			BufferFlushes.forDatabase(database).flushAfterCommit(this);
+		}
+	}
+
+	/**
+	 * The indexes whose write buffer is full, per thread since a Neo4j transaction belongs to one thread, to be
+	 * flushed once the transaction has committed. A new transaction cannot be started on the committing thread while
+	 * it still runs the commit handlers, so the flush runs on the common fork join pool, and at most one flush per
+	 * layer runs at a time. A flush that fails is logged, and tried again after the next commit on the database.
+	 * There is one of these per database, shared by all RTreeIndex instances, dropped when the database shuts down.
+	 */
+	private static class BufferFlushes extends TransactionEventHandler.Adapter<Object> {
+		private static final Map<GraphDatabaseService, BufferFlushes> databases = new WeakHashMap<>();
+
+		private final ThreadLocal<Map<Long, RTreeIndex>> pending = ThreadLocal.withInitial(HashMap::new);
+		private final Set<Long> flushing = ConcurrentHashMap.newKeySet();
+		private final Map<Long, RTreeIndex> failed = new ConcurrentHashMap<>();
+
+		static BufferFlushes forDatabase(GraphDatabaseService database) {
+			synchronized (databases) {
+				BufferFlushes flushes = databases.get(database);
+				if (flushes == null) {
+					flushes = new BufferFlushes();
+					database.registerTransactionEventHandler(flushes);
+					ShutdownHandler.onShutdown(database, () -> {
+						synchronized (databases) {
+							databases.remove(database);
+						}
+					});
+					databases.put(database, flushes);
+				}
+				return flushes;
+			}
+		}
+
+		void flushAfterCommit(RTreeIndex index) {
+			pending.get().putIfAbsent(index.getRootNode().getId(), index);
+		}
+
+		@Override
+		public void afterCommit(TransactionData data, Object state) {
+			Map<Long, RTreeIndex> indexes = pending.get();
+			pending.remove();
+			for (Long layerId : failed.keySet()) {
+				RTreeIndex index = failed.remove(layerId);
+				if (index != null) {
+					indexes.putIfAbsent(layerId, index);
+				}
+			}
+			for (Map.Entry<Long, RTreeIndex> entry : indexes.entrySet()) {
+				long layerId = entry.getKey();
+				if (flushing.add(layerId)) {
+					ForkJoinPool.commonPool().execute(() -> {
+						try {
+							entry.getValue().flushWriteBuffer();
+						} catch (RuntimeException e) {
+							// the geometries stay in the buffer
+							logFlushFailure(entry.getValue(), e);
+							failed.putIfAbsent(layerId, entry.getValue());
+						} finally {
+							flushing.remove(layerId);
+						}
+					});
+				}
+			}
+		}
+
+		@Override
+		public void afterRollback(TransactionData data, Object state) {
+			pending.remove();
+		}
+
+		private static void logFlushFailure(RTreeIndex index, RuntimeException e) {
+			if (index.database instanceof GraphDatabaseAPI) {
+				((GraphDatabaseAPI) index.database).getDependencyResolver().resolveDependency(LogService.class)
+						.getInternalLog(RTreeIndex.class)
+						.warn("Failed to flush the write buffer of index " + index.getRootNode().getId() + ", will retry after the next commit", e);
+			}
+		}
+	}
+
+	/**
+	 * Move all geometries of the write buffer into the tree with a single bulk insertion. This happens by itself
+	 * after a transaction that filled the buffer commits, and can be called at any other time, for example by a
+	 * periodic job when geometries arrive slowly. It should be called outside of the transactions adding geometries.
+	 *
+	 * @return the number of geometries moved into the tree
+	 */
+	public int flushWriteBuffer() {
+		try (Transaction tx = database.beginTx()) {
+			Node bufferNode = getBufferNode(false);
+			List<Node> geomNodes = new ArrayList<>();
+			if (bufferNode != null) {
+				tx.acquireWriteLock(bufferNode);
+				for (Relationship rel : bufferNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_BUFFERED)) {
+					geomNodes.add(rel.getEndNode());
+					rel.delete();
+				}
+				// kept on the buffer node by older versions
+				bufferNode.removeProperty(INDEX_PROP_CHILD_COUNT);
+				bufferNode.removeProperty(INDEX_PROP_BBOX);
+			}
+			if (!geomNodes.isEmpty()) {
+				// counted by add(List) as they enter the tree
+				add(geomNodes);
+			}
+			tx.success();
+			return geomNodes.size();
+		}
+	}
+
+	private Node getBufferNode(boolean create) {
+		Relationship relationship = getRootNode().getSingleRelationship(RTreeRelationshipTypes.RTREE_BUFFER, Direction.OUTGOING);
+		if (relationship != null) {
+			return relationship.getEndNode();
+		} else if (create) {
+			Node bufferNode = database.createNode();
+			getRootNode().createRelationshipTo(bufferNode, RTreeRelationshipTypes.RTREE_BUFFER);
+			return bufferNode;
+		} else {
+			return null;
+		}
+	}
+
+	private int getBufferedCount() {
+		Node bufferNode = getBufferNode(false);
+		return bufferNode == null ? 0 : bufferNode.getDegree(RTreeRelationshipTypes.RTREE_BUFFERED, Direction.OUTGOING);
+	}
+
+	private List<Node> getBufferedNodes() {
+		List<Node> geomNodes = new ArrayList<>();
+		Node bufferNode = getBufferNode(false);
+		if (bufferNode != null) {
+			for (Relationship rel : bufferNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_BUFFERED)) {
+				geomNodes.add(rel.getEndNode());
+			}
+		}
+		return geomNodes;
+	}
+
+	/**
+	 * The buffered geometries matching the filter. The buffer is small and has no bounding box of its own, so every
+	 * buffered geometry is checked.
+	 */
+	private List<Node> searchBuffer(SearchFilter filter) {
+		List<Node> results = new ArrayList<>();
+		Node bufferNode = getBufferNode(false);
+		if (bufferNode == null) {
+			return results;
+		}
+		double[] bbox = newBBox();
+		for (Relationship rel : bufferNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_BUFFERED)) {
+			Node geomNode = rel.getEndNode();
+			if (filter.geometryMatches(geomNode, bbox)) {
+				results.add(geomNode);
+			}
+		}
+		return results;
+	}
+
+	private Iterable<Node> withBuffer(Iterable<Node> treeResults, SearchFilter filter) {
+		List<Node> buffered = searchBuffer(filter);
+		return buffered.isEmpty() ? treeResults : Iterables.concat(treeResults, buffered);
+	}
+
+	private Relationship getBufferReference(Node geomNode) {
+		Node bufferNode = getBufferNode(false);
+		if (bufferNode != null) {
+			for (Relationship rel : geomNode.getRelationships(Direction.INCOMING, RTreeRelationshipTypes.RTREE_BUFFERED)) {
+				if (rel.getStartNode().equals(bufferNode)) {
+					return rel;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void deleteBuffer(boolean deleteGeomNodes) {
+		Node bufferNode = getBufferNode(false);
+		if (bufferNode != null) {
+			for (Relationship rel : bufferNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_BUFFERED)) {
+				Node geomNode = rel.getEndNode();
+				rel.delete();
+				if (deleteGeomNodes) {
+					deleteNode(geomNode);
+				}
+			}
+			bufferNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_BUFFER, Direction.INCOMING).delete();
+			invalidateIndexNodeEnvelope(bufferNode);
+			bufferNode.delete();
+		}
+	}
+
 	/**
 	 * Use this method if you want to insert an index node as a child of a given index node. This will recursively
 	 * update the bounding boxes above the parent to keep the tree consistent.
@@ -203,25 +787,24 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	public void add(List<Node> geomNodes) {
 
 		//If the insertion is large relative to the size of the tree, simply rebuild the whole tree.
+		int totalGeometryCount = getStoredCount();
 		if (geomNodes.size() > totalGeometryCount * 0.4) {
             List<Node> nodesToAdd = new ArrayList<>(geomNodes.size() + totalGeometryCount);
-			for (Node n : getAllIndexedNodes()) {
+			for (Node n : getAllTreeNodes()) {
 				nodesToAdd.add(n);
 			}
 			nodesToAdd.addAll(geomNodes);
 			detachGeometryNodes( false, getIndexRoot(), new NullListener() );
 			deleteTreeBelow( getIndexRoot() );
 			buildRtreeFromScratch(getIndexRoot(), decodeGeometryNodeEnvelopes(nodesToAdd), 0.7);
-			countSaved = false;
-			totalGeometryCount = nodesToAdd.size();
+			adjustCount(geomNodes.size());
             monitor.addNbrRebuilt(this);
 		} else {
 
 			List<NodeWithEnvelope> outliers = bulkInsertion(getIndexRoot(), getHeight(getIndexRoot(), 0), decodeGeometryNodeEnvelopes(geomNodes), 0.7);
-			countSaved = false;
-			totalGeometryCount = totalGeometryCount + (geomNodes.size() - outliers.size());
+			adjustCount(geomNodes.size() - outliers.size());
 			for (NodeWithEnvelope n : outliers) {
-				add(n.node);
+				addToTree(n.node);
 			}
 		}
 	}
@@ -262,12 +845,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
     List<NodeWithEnvelope> getIndexChildren(Node rootNode) {
-        List<NodeWithEnvelope> result = new ArrayList<>();
-        for (Relationship r : rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
-            Node child = r.getEndNode();
-            result.add(new NodeWithEnvelope(child, getIndexNodeEnvelope(child)));
+        if (packedChildEnvelopes) {
+            return getPackedIndexChildren(rootNode);
         }
-        return result;
+        return readIndexChildren(rootNode);
     }
 
 	private List<NodeWithEnvelope> getIndexChildren(Node rootNode, int depth) {
@@ -374,6 +955,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 					monitor.addCase("h_i > l_t (d==1)");
 					for (Relationship geom : newRootNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE)) {
 						addBelow(child.node, geom.getEndNode());
+						adjustChildCount(newRootNode, -1);
+						geometriesDetached(newRootNode, 1);
 						geom.delete();
 					}
 				} else {
@@ -382,6 +965,9 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 					List<NodeWithEnvelope> childrenToBeInserted = getIndexChildren(newRootNode, insertDepth);
 					for (NodeWithEnvelope n : childrenToBeInserted) {
 						Relationship relationship = n.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
+						invalidatePackedChildren(relationship.getStartNode());
+						adjustChildCount(relationship.getStartNode(), -1);
+						geometriesDetached(relationship.getStartNode(), getGeometryCount(n.node));
 						relationship.delete();
                         if (!shouldMergeTrees) {
                             insertIndexNodeOnParent(child.node, n.node);
@@ -438,7 +1024,16 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 			setIndexNodeEnvelope(newNode.node, newNode.envelope);
 			List<NodeWithEnvelope> rightChildren = getIndexChildren(pair.right.node);
 			pairs.removeIf(t -> t.contains(pair.left) || t.contains(pair.right));
+			long rightCount = getGeometryCount(pair.right.node);
+			if (concurrentInsert) {
+				DeferredExpansions.forDatabase(database).replace(this, pair.right.node.getId(), pair.left.node.getId());
+			}
 			for (Relationship rel : pair.right.node.getRelationships()) {
+					if (rel.isType(RTreeRelationshipTypes.RTREE_CHILD) && !rel.getStartNode().equals(pair.right.node)) {
+						invalidatePackedChildren(rel.getStartNode());
+						adjustChildCount(rel.getStartNode(), -1);
+						geometriesDetached(rel.getStartNode(), rightCount);
+					}
 					rel.delete();
 			}
 			disconnectedChildren.add(pair.right);
@@ -446,13 +1041,23 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 
 		right.removeIf(t -> disconnectedChildren.contains(t));
-		disconnectedChildren.forEach(t -> t.node.delete());
+		disconnectedChildren.forEach(t -> {
+			invalidateIndexNodeEnvelope(t.node);
+			t.node.delete();
+		});
 
+		initGeometryCount(parent.node);
+		long geometryCount = 0;
 		for( NodeWithEnvelope n : right){
 			n.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD,Direction.INCOMING);
+			long childCount = getGeometryCount(n.node);
+			geometryCount = geometryCount < 0 || childCount < 0 ? -1 : geometryCount + childCount;
 			parent.node.createRelationshipTo(n.node,RTreeRelationshipTypes.RTREE_CHILD);
 			parent.envelope.expandToInclude(n.envelope);
 		}
+		invalidatePackedChildren(parent.node);
+		adjustChildCount(parent.node, right.size());
+		geometriesAttached(parent.node, geometryCount);
 		setIndexNodeEnvelope(parent.node, parent.envelope);
 		if (countChildren(parent.node, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
 			splitAndAdjustPathBoundingBox(parent.node);
@@ -480,9 +1085,217 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      * //TODO - Better parallelisation strategy.
      */
 	private void buildRtreeFromScratch(Node rootNode, final List<NodeWithEnvelope> geomNodes, double loadingFactor) {
-		partition(rootNode, geomNodes, 0, loadingFactor);
+		if (bulkLoadMode.equals(STR_BULK_LOAD)) {
+			packSortTileRecursive(rootNode, geomNodes, loadingFactor);
+		} else {
+			partition(rootNode, geomNodes, 0, loadingFactor);
+		}
+	}
+
+	/**
+	 * Bottom-up bulk load based on "STR: A Simple and Efficient Algorithm for R-Tree Packing" by S. Leutenegger,
+	 * M. Lopez and J. Edgington. The entries are sorted on the first dimension and cut into slabs, each slab is sorted
+	 * on the next dimension and cut again, until the last dimension is cut into runs of nodes filled to the target
+	 * loading. The index nodes created are then packed the same way, level by level, until they fit in the root.
+	 * Apart from the last node of each slab every node is full, and the tiles of one level do not overlap along the
+	 * first dimension, which gives much less overlap than the top-down partitioner on skewed data.
+	 */
+	private void packSortTileRecursive(Node rootNode, List<NodeWithEnvelope> entries, double loadingFactor) {
+		List<NodeWithEnvelope> level = packLevels(entries, loadingFactor, Integer.MAX_VALUE, null, new NullListener());
+		if (!level.isEmpty()) {
+			connectChildren(rootNode, level, level == entries ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD);
+			adjustPathBoundingBox(rootNode);
+		}
+		monitor.addSplit(rootNode);
+	}
+
+	/**
+	 * Pack the entries into levels of new index nodes, as described for packSortTileRecursive, until the top level
+	 * fits in one node. Each transaction connects about batchSize children, which only commits anything when this is
+	 * called outside of a transaction. If a staging node is given, every index node created hangs below it until it
+	 * gets its parent, so that what has been committed is always one tree below the staging node.
+	 *
+	 * @return the index nodes of the top level, or the entries themselves if they already fit in one node
+	 */
+	private List<NodeWithEnvelope> packLevels(List<NodeWithEnvelope> entries, double loadingFactor, int batchSize, Node staging, Listener listener) {
+		final int targetLoading = Math.max(2, (int) Math.round(maxNodeReferences * loadingFactor));
+		RelationshipType relationshipType = RTreeRelationshipTypes.RTREE_REFERENCE;
+		List<NodeWithEnvelope> level = entries;
+		while (level.size() > targetLoading) {
+			List<List<NodeWithEnvelope>> tiles = new ArrayList<>(level.size() / targetLoading + 1);
+			tile(new ArrayList<>(level), 0, targetLoading, tiles);
+			List<NodeWithEnvelope> parents = new ArrayList<>(tiles.size());
+			Iterator<List<NodeWithEnvelope>> remaining = tiles.iterator();
+			while (remaining.hasNext()) {
+				int connected = 0;
+				try (Transaction tx = database.beginTx()) {
+					while (remaining.hasNext() && connected < batchSize) {
+						List<NodeWithEnvelope> tile = remaining.next();
+						Node indexNode = database.createNode();
+						if (staging != null) {
+							if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+								unstage(tile);
+							}
+							staging.createRelationshipTo(indexNode, RTreeRelationshipTypes.RTREE_CHILD);
+						}
+						parents.add(new NodeWithEnvelope(indexNode, connectChildren(indexNode, tile, relationshipType)));
+						connected += tile.size();
+					}
+					tx.success();
+				}
+				if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE) {
+					listener.worked(connected);
+				}
+			}
+			level = parents;
+			relationshipType = RTreeRelationshipTypes.RTREE_CHILD;
+		}
+		return level;
+	}
+
+	private static void unstage(List<NodeWithEnvelope> indexNodes) {
+		for (NodeWithEnvelope child : indexNodes) {
+			child.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).delete();
+		}
+	}
+
+	private void tile(List<NodeWithEnvelope> entries, int dimension, int targetLoading, List<List<NodeWithEnvelope>> tiles) {
+		int dimensions = entries.get(0).envelope.getDimension();
+		sortByCentre(entries, dimension);
+		if (dimension >= dimensions - 1) {
+			for (int start = 0; start < entries.size(); start += targetLoading) {
+				tiles.add(entries.subList(start, Math.min(start + targetLoading, entries.size())));
+			}
+		} else {
+			// cut into slabs so that each of the remaining dimensions gets the same number of cuts
+			int pages = (int) Math.ceil((double) entries.size() / targetLoading);
+			int slabs = (int) Math.ceil(Math.pow(pages, 1.0 / (dimensions - dimension)));
+			int slabSize = targetLoading * (int) Math.ceil((double) pages / slabs);
+			for (int start = 0; start < entries.size(); start += slabSize) {
+				tile(entries.subList(start, Math.min(start + slabSize, entries.size())), dimension + 1, targetLoading, tiles);
+			}
+		}
+	}
+
+	private static final int PARALLEL_SORT_THRESHOLD = 10000;
+
+	private void sortByCentre(List<NodeWithEnvelope> entries, int dimension) {
+		Comparator<NodeWithEnvelope> comparator = new SingleDimensionNodeEnvelopeComparator(dimension);
+		if (entries.size() < PARALLEL_SORT_THRESHOLD) {
+			entries.sort(comparator);
+		} else {
+			NodeWithEnvelope[] sorted = entries.toArray(new NodeWithEnvelope[entries.size()]);
+			Arrays.parallelSort(sorted, comparator);
+			for (int i = 0; i < sorted.length; i++) {
+				entries.set(i, sorted[i]);
+			}
+		}
+	}
+
+	/**
+	 * Connect a group of children with known envelopes to an index node and set its bounding box to enclose them.
+	 */
+	private Envelope connectChildren(Node parent, List<NodeWithEnvelope> children, RelationshipType relationshipType) {
+		invalidatePackedChildren(parent);
+		if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+			initGeometryCount(parent);
+		}
+		Envelope envelope = null;
+		long geometryCount = 0;
+		for (NodeWithEnvelope child : children) {
+			long childCount = getGeometryCount(child.node, relationshipType);
+			geometryCount = geometryCount < 0 || childCount < 0 ? -1 : geometryCount + childCount;
+			parent.createRelationshipTo(child.node, relationshipType);
+			if (envelope == null) {
+				envelope = new Envelope(child.envelope);
+			} else {
+				envelope.expandToInclude(child.envelope);
+			}
+		}
+		adjustChildCount(parent, children.size());
+		geometriesAttached(parent, geometryCount);
+		setIndexNodeEnvelope(parent, envelope);
+		if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+			packChildren(parent, children);
+		}
+		return envelope;
+	}
+
+	/**
+	 * Rebuild the tree with the Sort-Tile-Recursive bulk loader beside the current one, and attach the new tree to the
+	 * layer in one small transaction, which detaches the old tree the same way as clear does. The new tree is built
+	 * below a root that is detached from the layer from the first batch on, so if the rebuild fails or the database
+	 * stops, what was built is deleted like any detached tree. The old tree is kept, so queries still running on it
+	 * keep working, and is deleted by the next rebuild, removeAll or clear, or by deleteDetachedTrees. Everything is
+	 * committed in transactions of about batchSize relationships when this is called outside of a transaction, inside
+	 * one it is all committed with that transaction. Queries started after the swap use the new tree. Inserts and
+	 * removals during the rebuild are not supported: if the index has been modified by the time of the swap, the new
+	 * tree is deleted instead, and an exception is thrown.
+	 *
+	 * @return the number of geometries in the new tree
+	 */
+	public int rebuild(int batchSize, Listener listener) {
+		// trees detached by an earlier rebuild, or left over by one that failed
+		deleteDetachedTrees(new NullListener(), batchSize);
+
+		List<NodeWithEnvelope> entries = new ArrayList<>();
+		Node oldRoot;
+		long modifications;
+		try (Transaction tx = database.beginTx()) {
+			oldRoot = getIndexRoot();
+			modifications = getModificationCount();
+			for (Node geomNode : getAllTreeNodes()) {
+				entries.add(new NodeWithEnvelope(geomNode, getLeafNodeEnvelope(geomNode)));
+			}
+			tx.success();
+		}
+		listener.begin(entries.size());
+		try {
+			if (entries.isEmpty()) {
+				return 0;
+			}
+
+			Node newRoot;
+			try (Transaction tx = database.beginTx()) {
+				newRoot = database.createNode();
+				getRootNode().createRelationshipTo(newRoot, RTreeRelationshipTypes.RTREE_DETACHED).setProperty(PROP_DELETE_GEOMETRY_NODES, false);
+				tx.success();
+			}
+			List<NodeWithEnvelope> level = packLevels(entries, REBUILD_LOADING_FACTOR, batchSize, newRoot, listener);
+
+			boolean swapped;
+			try (Transaction tx = database.beginTx()) {
+				Node layerNode = getRootNode();
+				tx.acquireWriteLock(layerNode);
+				tx.acquireWriteLock(getMetadataNode());
+				swapped = getIndexRoot().equals(oldRoot) && getModificationCount() == modifications;
+				if (swapped) {
+					if (level == entries) {
+						connectChildren(newRoot, level, RTreeRelationshipTypes.RTREE_REFERENCE);
+					} else {
+						unstage(level);
+						connectChildren(newRoot, level, RTreeRelationshipTypes.RTREE_CHILD);
+					}
+					newRoot.getSingleRelationship(RTreeRelationshipTypes.RTREE_DETACHED, Direction.INCOMING).delete();
+					layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).delete();
+					layerNode.createRelationshipTo(newRoot, RTreeRelationshipTypes.RTREE_ROOT);
+					layerNode.createRelationshipTo(oldRoot, RTreeRelationshipTypes.RTREE_DETACHED).setProperty(PROP_DELETE_GEOMETRY_NODES, false);
+				}
+				tx.success();
+			}
+
+			if (!swapped) {
+				deleteDetachedTrees(new NullListener(), batchSize);
+				throw new RuntimeException("RTree was modified during the rebuild, the new tree has been discarded");
+			}
+			return entries.size();
+		} finally {
+			listener.done();
+		}
 	}
 
+	private static final double REBUILD_LOADING_FACTOR = 0.7;
+
 	/**
 	 * This will partition a collection of nodes under the specified index node. The nodes are clustered into one
      * or more groups based on the loading factor, and the tree is expanded if necessary. If the nodes all fit
@@ -564,7 +1377,13 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 				throw nfe;
 			}
 		}
-        if (geomNode != null && isGeometryNodeIndexed(geomNode)) {
+        Relationship bufferReference = geomNode == null ? null : getBufferReference(geomNode);
+        if (bufferReference != null) {
+            bufferReference.delete();
+            if (deleteGeomNode) {
+                deleteNode(geomNode);
+            }
+        } else if (geomNode != null && isGeometryNodeIndexed(geomNode)) {
 
             Node indexNode = findLeafContainingGeometryNode(geomNode);
 
@@ -572,8 +1391,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             if (isIndexNodeInThisIndex(indexNode)) {
 
                 // remove the entry
-                final Relationship geometryRtreeReference = geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
+                final Relationship geometryRtreeReference = getReference(indexNode, geomNode);
                 if (geometryRtreeReference != null) {
+                    adjustChildCount(geometryRtreeReference.getStartNode(), -1);
+                    geometriesDetached(geometryRtreeReference.getStartNode(), 1);
                     geometryRtreeReference.delete();
                 }
                 if (deleteGeomNode) {
@@ -590,8 +1411,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
                 adjustPathBoundingBox(indexNode);
 
-                countSaved = false;
-                totalGeometryCount--;
+                adjustCount(-1);
             } else if (throwExceptionIfNotFound) {
                 throw new RuntimeException("GeometryNode not indexed in this RTree: " + geomNodeId);
             }
@@ -604,8 +1424,15 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		if (countChildren(indexNode, relType) == 0) {
 			Node parent = getIndexNodeParent(indexNode);
 			if (parent != null) {
+				geometriesDetached(parent, getGeometryCount(indexNode));
+				if (concurrentInsert) {
+					DeferredExpansions.forDatabase(database).replace(this, indexNode.getId(), parent.getId());
+				}
 				indexNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).delete();
-				
+				invalidatePackedChildren(parent);
+				adjustChildCount(parent, -1);
+
+				invalidateIndexNodeEnvelope(indexNode);
 				indexNode.delete();
 				return deleteEmptyTreeNodes(parent, RTreeRelationshipTypes.RTREE_CHILD);
 			} else {
@@ -627,7 +1454,11 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 				}
 
 				public void onIndexReference(Node geomNode) {
-					geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+					// a tree detached by rebuild can still reference the same geometry node
+					Relationship reference = getReference(findLeafContainingGeometryNode(geomNode), geomNode);
+					adjustChildCount(reference.getStartNode(), -1);
+					geometriesDetached(reference.getStartNode(), 1);
+					reference.delete();
 					if (deleteGeomNodes) {
 						deleteNode(geomNode);
 					}
@@ -642,37 +1473,146 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public void removeAll(final boolean deleteGeomNodes, final Listener monitor) {
-		Node indexRoot = getIndexRoot();
+		removeAll(deleteGeomNodes, monitor, DEFAULT_REMOVE_BATCH_SIZE);
+	}
 
-		detachGeometryNodes( deleteGeomNodes, indexRoot, monitor );
+	/**
+	 * Remove the whole tree in transactions of about batchSize deletions when called outside of a transaction. The
+	 * tree is first detached from the layer, together with the metadata, and then deleted from the leaves up, see
+	 * deleteDetachedTrees. If this is interrupted, for example by a crash, the rest of the tree is deleted by the next
+	 * call to removeAll or clear on the layer.
+	 */
+	@Override
+	public void removeAll(final boolean deleteGeomNodes, final Listener monitor, int batchSize) {
+		detachTree(deleteGeomNodes, monitor, false);
+		deleteDetachedTrees(monitor, batchSize);
+	}
 
-		try (Transaction tx = database.beginTx()) {
-			// delete index root relationship
-			indexRoot.getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.INCOMING).delete();
+	@Override
+	public void clear(final Listener monitor) {
+		clear(monitor, DEFAULT_REMOVE_BATCH_SIZE);
+	}
+
+	/**
+	 * Like removeAll without deleting the geometry nodes, but the detached tree is replaced with an empty one in the
+	 * same transaction, so the index can be used again while the old tree is being deleted.
+	 */
+	public void clear(final Listener monitor, int batchSize) {
+		detachTree(false, monitor, true);
+		deleteDetachedTrees(monitor, batchSize);
+	}
 
-			// delete tree
-			deleteRecursivelySubtree(indexRoot,null);
+	private static final int DEFAULT_REMOVE_BATCH_SIZE = 10000;
+	private static final String PROP_DELETE_GEOMETRY_NODES = "deleteGeometryNodes";
 
-			// delete tree metadata
-			Relationship metadataNodeRelationship = getRootNode().getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
-			Node metadataNode = metadataNodeRelationship.getEndNode();
-			metadataNodeRelationship.delete();
-			metadataNode.delete();
+	private void detachTree(boolean deleteGeomNodes, Listener monitor, boolean replace) {
+		try (Transaction tx = database.beginTx()) {
+			Node layerNode = getRootNode();
+			tx.acquireWriteLock(layerNode);
+			int units = layerNode.hasRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING) ? count() : 0;
+			for (Relationship detached : layerNode.getRelationships(RTreeRelationshipTypes.RTREE_DETACHED, Direction.OUTGOING)) {
+				units += (int) Math.max(0, getGeometryCount(detached.getEndNode()));
+			}
+			monitor.begin(units);
+			deleteBuffer(deleteGeomNodes);
+
+			Relationship rootRelationship = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING);
+			if (rootRelationship != null) {
+				Node indexRoot = rootRelationship.getEndNode();
+				rootRelationship.delete();
+				layerNode.createRelationshipTo(indexRoot, RTreeRelationshipTypes.RTREE_DETACHED).setProperty(PROP_DELETE_GEOMETRY_NODES, deleteGeomNodes);
+			}
+
+			Relationship metadataNodeRelationship = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
+			if (metadataNodeRelationship != null) {
+				Node metadataNode = metadataNodeRelationship.getEndNode();
+				metadataNodeRelationship.delete();
+				metadataNode.delete();
+			}
+			metadataNode = null;
+			if (envelopeCache != null) {
+				envelopeCache.invalidateAll();
+			}
 
+			if (replace) {
+				initIndexRoot();
+				initIndexMetadata();
+			}
 			tx.success();
 		}
+	}
 
-		countSaved = false;
-		totalGeometryCount = 0;
+	/**
+	 * Delete the trees detached from the layer by removeAll, clear and rebuild. Each transaction goes down to the first
+	 * leaf, deletes its references, and then deletes the index nodes that are left empty on the way back up, until
+	 * about batchSize relationships and nodes have been deleted. Only empty index nodes are deleted, so what is left of
+	 * a tree is always a tree, and the deletion can go on from its root after an interruption. Queries still running
+	 * on a tree detached by rebuild may fail once it is deleted.
+	 */
+	public void deleteDetachedTrees(Listener monitor, int batchSize) {
+		try {
+			boolean more = true;
+			while (more) {
+				try (Transaction tx = database.beginTx()) {
+					Iterator<Relationship> detached = getRootNode().getRelationships(RTreeRelationshipTypes.RTREE_DETACHED, Direction.OUTGOING).iterator();
+					more = detached.hasNext();
+					if (more) {
+						deleteDetachedTreeBatch(detached.next(), monitor, batchSize);
+					}
+					tx.success();
+				}
+			}
+		} finally {
+			monitor.done();
+		}
 	}
 
-	@Override
-	public void clear(final Listener monitor) {
-		try (Transaction tx = database.beginTx()) {
-			removeAll(false, new NullListener());
-			initIndexRoot();
-			initIndexMetadata();
-			tx.success();
+	private void deleteDetachedTreeBatch(Relationship detached, Listener monitor, int batchSize) {
+		boolean deleteGeomNodes = (Boolean) detached.getProperty(PROP_DELETE_GEOMETRY_NODES, false);
+		int deleted = 0;
+		Node indexNode = detached.getEndNode();
+		while (deleted < batchSize) {
+			Iterator<Relationship> children = indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD).iterator();
+			if (children.hasNext()) {
+				indexNode = children.next().getEndNode();
+				continue;
+			}
+
+			int references = 0;
+			for (Relationship reference : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+				if (deleted >= batchSize) {
+					break;
+				}
+				Node geomNode = reference.getEndNode();
+				reference.delete();
+				if (deleteGeomNodes) {
+					deleteNode(geomNode);
+				}
+				references++;
+				deleted++;
+			}
+			if (references > 0) {
+				monitor.worked(references);
+			}
+			if (deleted >= batchSize) {
+				return;
+			}
+
+			// the index node is empty now
+			Relationship incoming = indexNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
+			Node parent = incoming == null ? null : incoming.getStartNode();
+			if (incoming != null) {
+				incoming.delete();
+			} else {
+				detached.delete();
+			}
+			invalidateIndexNodeEnvelope(indexNode);
+			indexNode.delete();
+			deleted += 2;
+			if (parent == null) {
+				return;
+			}
+			indexNode = parent;
 		}
 	}
 
@@ -680,6 +1620,14 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	public Envelope getBoundingBox() {
 		try (Transaction tx = database.beginTx()) {
 			Envelope result = getIndexNodeEnvelope(getIndexRoot());
+			for (Node geomNode : getBufferedNodes()) {
+				Envelope buffered = getLeafNodeEnvelope(geomNode);
+				if (result == null) {
+					result = buffered;
+				} else {
+					result.expandToInclude(buffered);
+				}
+			}
 			tx.success();
 			return result;
 		}
@@ -687,24 +1635,236 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public int count() {
-		saveCount();
-		return totalGeometryCount;
+		try (Transaction tx = database.beginTx()) {
+			int count = getStoredCount() + getBufferedCount();
+			tx.success();
+			return count;
+		}
+	}
+
+	/**
+	 * Count the geometries in a window, adding up the geometry counts of the index nodes that lie inside the window
+	 * without visiting the geometries below them. The filter is only asked about the geometries of the leaves on the
+	 * edge of the window, and must match every geometry with a bounding box inside the window, as a search for the
+	 * geometries intersecting the window does.
+	 */
+	public long count(Envelope window, SearchFilter filter) {
+		return countGrid(window, 1, 1, cell -> filter)[0][0];
+	}
+
+	/**
+	 * Count the geometries in each cell of a grid over the extent, as for a heatmap, in a single pass over the tree.
+	 * An index node that lies inside one cell, without touching the others, adds its geometry count to that cell,
+	 * and a geometry on the edge of several cells is counted in each cell whose filter matches it. The filters are
+	 * created for the cells that need them, and must match every geometry with a bounding box inside their cell.
+	 *
+	 * @return the counts by row and then by column, starting at the minimum of the extent
+	 */
+	public long[][] countGrid(Envelope extent, int columns, int rows, Function<Envelope, SearchFilter> cellFilters) {
+		if (columns < 1 || rows < 1) {
+			throw new IllegalArgumentException("The grid needs at least one column and one row: " + columns + "x" + rows);
+		}
+		CountGrid grid = new CountGrid(extent, columns, rows, cellFilters);
+		try (Transaction tx = database.beginTx()) {
+			double[] bbox = newBBox();
+			Deque<Node> stack = new ArrayDeque<>();
+			stack.push(getIndexRoot());
+			while (!stack.isEmpty()) {
+				Node indexNode = stack.pop();
+				if (!readIndexNodeBBox(indexNode, bbox) || !grid.intersects(bbox)) {
+					continue;
+				}
+				int cell = grid.cellContaining(bbox);
+				long count = cell < 0 ? -1 : getGeometryCount(indexNode);
+				if (count >= 0) {
+					grid.add(cell, count);
+					continue;
+				}
+				boolean leaf = true;
+				for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+					leaf = false;
+					stack.push(relationship.getEndNode());
+				}
+				if (leaf) {
+					for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+						grid.addGeometry(relationship.getEndNode());
+					}
+				}
+			}
+			for (Node geomNode : getBufferedNodes()) {
+				grid.addGeometry(geomNode);
+			}
+			tx.success();
+			return grid.counts;
+		}
+	}
+
+	/**
+	 * The cells of countGrid, which are closed, so a bounding box on the line between two cells is in both. The grid
+	 * divides the first two dimensions, an extent with more dimensions also bounds the cells in the others, and one
+	 * with fewer dimensions than the index leaves the others unbounded.
+	 */
+	private class CountGrid {
+		private final Envelope extent;
+		private final int maxOffset = dimensions;
+		private final double minX;
+		private final double minY;
+		private final double maxX;
+		private final double maxY;
+		private final double cellWidth;
+		private final double cellHeight;
+		private final int columns;
+		private final int rows;
+		private final Function<Envelope, SearchFilter> cellFilters;
+		private final SearchFilter[] filters;
+		private final long[][] counts;
+		private final double[] geomBBox = newBBox();
+		private final double[] scratch = newBBox();
+
+		CountGrid(Envelope extent, int columns, int rows, Function<Envelope, SearchFilter> cellFilters) {
+			this.extent = extent;
+			this.minX = extent.getMinX();
+			this.minY = extent.getMinY();
+			this.maxX = extent.getMaxX();
+			this.maxY = extent.getMaxY();
+			this.cellWidth = extent.getWidth(0) / columns;
+			this.cellHeight = extent.getWidth(1) / rows;
+			this.columns = columns;
+			this.rows = rows;
+			this.cellFilters = cellFilters;
+			this.filters = new SearchFilter[columns * rows];
+			this.counts = new long[rows][columns];
+		}
+
+		boolean intersects(double[] bbox) {
+			return extent.intersects(bbox);
+		}
+
+		/**
+		 * @return the cell the bounding box is inside of without touching another cell, or -1
+		 */
+		int cellContaining(double[] bbox) {
+			int column = (int) Math.floor((bbox[0] - minX) / cellWidth);
+			int row = (int) Math.floor((bbox[1] - minY) / cellHeight);
+			if (column < 0 || column >= columns || row < 0 || row >= rows || !extent.covers(bbox)) {
+				return -1;
+			}
+			boolean inside = (column == 0 ? bbox[0] >= minX : bbox[0] > cellMinX(column))
+					&& (column == columns - 1 ? bbox[maxOffset] <= maxX : bbox[maxOffset] < cellMaxX(column))
+					&& (row == 0 ? bbox[1] >= minY : bbox[1] > cellMinY(row))
+					&& (row == rows - 1 ? bbox[maxOffset + 1] <= maxY : bbox[maxOffset + 1] < cellMaxY(row));
+			return inside ? row * columns + column : -1;
+		}
+
+		void add(int cell, long count) {
+			counts[cell / columns][cell % columns] += count;
+		}
+
+		void addGeometry(Node geomNode) {
+			if (!envelopeDecoder.decodeBBox(geomNode, geomBBox) || !intersects(geomBBox)) {
+				return;
+			}
+			int cell = cellContaining(geomBBox);
+			if (cell >= 0) {
+				add(cell, 1);
+				return;
+			}
+			// the cells are found by division, so look one further on each side and check them exactly
+			int firstColumn = Math.max(0, (int) Math.floor((geomBBox[0] - minX) / cellWidth) - 1);
+			int lastColumn = Math.min(columns - 1, (int) Math.floor((geomBBox[maxOffset] - minX) / cellWidth) + 1);
+			int firstRow = Math.max(0, (int) Math.floor((geomBBox[1] - minY) / cellHeight) - 1);
+			int lastRow = Math.min(rows - 1, (int) Math.floor((geomBBox[maxOffset + 1] - minY) / cellHeight) + 1);
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					if (geomBBox[0] <= cellMaxX(column) && geomBBox[maxOffset] >= cellMinX(column)
+							&& geomBBox[1] <= cellMaxY(row) && geomBBox[maxOffset + 1] >= cellMinY(row)
+							&& getFilter(column, row).geometryMatches(geomNode, scratch)) {
+						counts[row][column]++;
+					}
+				}
+			}
+		}
+
+		private SearchFilter getFilter(int column, int row) {
+			int cell = row * columns + column;
+			if (filters[cell] == null) {
+				double[] min = extent.getMin().clone();
+				double[] max = extent.getMax().clone();
+				min[0] = cellMinX(column);
+				max[0] = cellMaxX(column);
+				min[1] = cellMinY(row);
+				max[1] = cellMaxY(row);
+				filters[cell] = cellFilters.apply(new Envelope(min, max));
+			}
+			return filters[cell];
+		}
+
+		private double cellMinX(int column) {
+			return minX + column * cellWidth;
+		}
+
+		private double cellMaxX(int column) {
+			return column == columns - 1 ? maxX : minX + (column + 1) * cellWidth;
+		}
+
+		private double cellMinY(int row) {
+			return minY + row * cellHeight;
+		}
+
+		private double cellMaxY(int row) {
+			return row == rows - 1 ? maxY : minY + (row + 1) * cellHeight;
+		}
 	}
 
 	@Override
 	public boolean isEmpty() {
 		Node indexRoot = getIndexRoot();
-		return !indexRoot.hasProperty(INDEX_PROP_BBOX);
+		return !indexRoot.hasProperty(INDEX_PROP_BBOX) && getBufferedCount() == 0;
 	}
 
 	@Override
 	public boolean isNodeIndexed(Long geomNodeId) {
         Node geomNode = database.getNodeById(geomNodeId);
         // be sure geomNode is inside this RTree
-        return geomNode != null && isGeometryNodeIndexed(geomNode)
-                && isIndexNodeInThisIndex(findLeafContainingGeometryNode(geomNode));
+        return geomNode != null && (getBufferReference(geomNode) != null || isGeometryNodeIndexed(geomNode)
+                && isIndexNodeInThisIndex(findLeafContainingGeometryNode(geomNode)));
     }
 
+	/**
+	 * Walk all index nodes once, level by level, and collect the shape of the tree.
+	 *
+	 * @param queryFraction size of the query window for the pages per query estimate, as a fraction of the area
+	 *                      covered by the whole tree
+	 */
+	public RTreeStatistics getStatistics(double queryFraction) {
+		try (Transaction tx = database.beginTx()) {
+			Node indexRoot = getIndexRoot();
+			RTreeStatistics statistics = new RTreeStatistics(maxNodeReferences, getIndexNodeEnvelope(indexRoot), queryFraction);
+			List<Node> level = Collections.singletonList(indexRoot);
+			for (int depth = 0; !level.isEmpty(); depth++) {
+				List<Node> nextLevel = new ArrayList<>();
+				for (Node indexNode : level) {
+					List<Envelope> children = new ArrayList<>();
+					boolean leaf = nodeIsLeaf(indexNode);
+					if (leaf) {
+						for (Relationship relationship : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+							children.add(getLeafNodeEnvelope(relationship.getEndNode()));
+						}
+					} else {
+						for (NodeWithEnvelope child : getIndexChildren(indexNode)) {
+							nextLevel.add(child.node);
+							children.add(child.envelope);
+						}
+					}
+					statistics.addIndexNode(depth, getIndexNodeEnvelope(indexNode), children, leaf);
+				}
+				level = nextLevel;
+			}
+			tx.success();
+			return statistics;
+		}
+	}
+
 	public void warmUp() {
 		visit(new WarmUpVisitor(), getIndexRoot());
 	}
@@ -720,60 +1880,639 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	@Override
 	public Iterable<Node> getAllIndexedNodes() {
-		return new IndexNodeToGeometryNodeIterable(getAllIndexInternalNodes());
+		List<Node> buffered = getBufferedNodes();
+		return buffered.isEmpty() ? getAllTreeNodes() : Iterables.concat(getAllTreeNodes(), buffered);
 	}
 
-	private class SearchEvaluator implements Evaluator
-	{
-		private SearchFilter filter;
+	/**
+	 * All geometry nodes in the tree, leaving out those in the write buffer.
+	 */
+	private Iterable<Node> getAllTreeNodes() {
+		return new IndexNodeToGeometryNodeIterable(getAllIndexInternalNodes());
+	}
 
-		public SearchEvaluator(SearchFilter filter) {
+	/**
+	 * Depth first search below one index node, with the pending index nodes kept as ids on a primitive stack. Each
+	 * index node is expanded with a single typed relationship lookup and its bounding box is read into a reused
+	 * array, which is passed to the filter as is, so apart from what the filter itself allocates the search creates no
+	 * garbage per visited index node.
+	 * Like a traverser, the search is lazy and must be consumed within a transaction.
+	 */
+	private class SearchIterator implements Iterator<Node> {
+		private final SearchFilter filter;
+		private final double[] bbox = newBBox();
+		private final double[] geomBBox = newBBox();
+		private long[] stack = new long[64];
+		private int[] depths = new int[64];
+		private int size = 0;
+		private Iterator<Relationship> references;
+		private int referenceDepth;
+		private Node next;
+
+		/**
+		 * @param depth depth of the start node below the index root, for the monitor
+		 */
+		SearchIterator(SearchFilter filter, Node start, int depth) {
 			this.filter = filter;
+			push(start.getId(), depth);
 		}
 
 		@Override
-        public Evaluation evaluate( Path path )
-        {
-            Relationship rel = path.lastRelationship();
-            Node node = path.endNode();
-            if ( rel == null )
-            {
-                return Evaluation.EXCLUDE_AND_CONTINUE;
-            }
-            else if ( rel.isType( RTreeRelationshipTypes.RTREE_CHILD ) )
-            {
-				boolean shouldContinue = filter.needsToVisit( getIndexNodeEnvelope( node ) );
-				if(shouldContinue) monitor.matchedTreeNode(path.length(), node);
+		public boolean hasNext() {
+			while (next == null) {
+				if (references != null && references.hasNext()) {
+					Node geomNode = references.next().getEndNode();
+					boolean found = filter.geometryMatches(geomNode, geomBBox);
+					monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
+					if (found) {
+						monitor.setHeight(referenceDepth);
+						next = geomNode;
+					}
+					continue;
+				}
+				references = null;
+				if (size == 0) {
+					return false;
+				}
+				size--;
+				Node indexNode = database.getNodeById(stack[size]);
+				expand(indexNode, depths[size]);
+			}
+			return true;
+		}
+
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node result = next;
+			next = null;
+			return result;
+		}
+
+		private void expand(Node indexNode, int depth) {
+			int first = size;
+			boolean leaf = true;
+			for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+				leaf = false;
+				Node child = rel.getEndNode();
+				boolean shouldContinue = filter.needsToVisit(readIndexNodeBBox(child, bbox) ? bbox : null);
+				if (shouldContinue) monitor.matchedTreeNode(depth + 1, child);
 				monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
-                return shouldContinue ?
-                       Evaluation.EXCLUDE_AND_CONTINUE :
-                       Evaluation.EXCLUDE_AND_PRUNE;
-            }
-            else if ( rel.isType( RTreeRelationshipTypes.RTREE_REFERENCE ) )
-            {
-				boolean found = filter.geometryMatches( node );
-				monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
-                if(found) monitor.setHeight(path.length());
-                return found ?
-                       Evaluation.INCLUDE_AND_PRUNE :
-                       Evaluation.EXCLUDE_AND_PRUNE;
-            }
-            return null;
-        }
-    }
+				if (shouldContinue) {
+					push(child.getId(), depth + 1);
+				}
+			}
+			if (size > first) {
+				// visit the children in relationship order, as a depth first traversal would
+				for (int i = first, j = size - 1; i < j; i++, j--) {
+					long id = stack[i];
+					stack[i] = stack[j];
+					stack[j] = id;
+				}
+			} else if (leaf) {
+				references = indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE).iterator();
+				referenceDepth = depth + 1;
+			}
+		}
+
+		private void push(long id, int depth) {
+			if (size == stack.length) {
+				stack = Arrays.copyOf(stack, size * 2);
+				depths = Arrays.copyOf(depths, size * 2);
+			}
+			stack[size] = id;
+			depths[size] = depth;
+			size++;
+		}
+	}
 
 	public SearchResults searchIndex(SearchFilter filter) {
+		if (searchParallelism > 1) {
+			return searchIndexInParallel(filter);
+		}
+		try (Transaction tx = database.beginTx()) {
+			SearchResults results = new SearchResults(withBuffer(searchSubtree(filter, getIndexRoot(), 0), filter));
+			tx.success();
+			return results;
+		}
+	}
+
+	/**
+	 * Search the subtrees below the index root that match the filter on up to searchParallelism threads of a pool
+	 * shared by all indexes, and stream the results as the workers find them, in no particular order. Each worker takes
+	 * the next subtree nobody searched yet and searches it in a read transaction of its own. All workers hand their
+	 * results over through one queue of PARALLEL_SEARCH_QUEUE_SIZE nodes, so memory stays bounded however large the
+	 * result. A worker waiting for a slow caller lets the pool start another thread for other searches meanwhile, and
+	 * stops once the caller has dropped the results. The workers only see committed data, so this is meant for large
+	 * read-only queries, and the filter and the monitor must be safe to call from several threads. A root that is a
+	 * leaf, or with less than two matching children, is searched on the calling thread.
+	 */
+	private SearchResults searchIndexInParallel(SearchFilter filter) {
+		List<Long> subtrees = new ArrayList<>();
+		try (Transaction tx = database.beginTx()) {
+			Node indexRoot = getIndexRoot();
+			for (Relationship relationship : indexRoot.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				Node child = relationship.getEndNode();
+				boolean shouldContinue = filter.needsToVisit(getIndexNodeEnvelope(child));
+				if (shouldContinue) monitor.matchedTreeNode(1, child);
+				monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
+				if (shouldContinue) {
+					subtrees.add(child.getId());
+				}
+			}
+			tx.success();
+		}
+
 		try (Transaction tx = database.beginTx()) {
-			SearchEvaluator searchEvaluator = new SearchEvaluator(filter);
-			TraversalDescription td = database.traversalDescription()
-					.depthFirst()
-					.relationships( RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING )
-					.relationships( RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING )
-					.evaluator( searchEvaluator );
-            Traverser traverser = td.traverse( getIndexRoot() );
-            SearchResults results = new SearchResults( traverser.nodes() );
-            tx.success();
-            return results;
+			SearchResults results;
+			if (subtrees.size() < 2) {
+				// nothing to share between threads, and this also covers the root being a leaf
+				results = new SearchResults(withBuffer(searchSubtree(filter, getIndexRoot(), 0), filter));
+			} else {
+				results = new SearchResults(withBuffer(() -> new ParallelSearchIterator(filter, subtrees), filter));
+			}
+			tx.success();
+			return results;
+		}
+	}
+
+	private static final int PARALLEL_SEARCH_QUEUE_SIZE = 1000;
+
+	// shared by all indexes, since layers and their indexes are created anew for many operations; its threads are
+	// daemons and the pool releases them when idle
+	private static final ForkJoinPool searchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private class ParallelSearchIterator implements Iterator<Node> {
+		private final ParallelSearch search;
+		private Node next;
+
+		private ParallelSearchIterator(SearchFilter filter, List<Long> subtrees) {
+			int workers = Math.min(searchParallelism, subtrees.size());
+			this.search = new ParallelSearch(filter, subtrees, workers, new WeakReference<>(this));
+			for (int i = 0; i < workers; i++) {
+				searchPool.execute(search::work);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = search.take();
+			}
+			return next != null;
+		}
+
+		@Override
+		public Node next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node result = next;
+			next = null;
+			return result;
+		}
+	}
+
+	/**
+	 * The state shared by the workers of one parallel search and its iterator. It only keeps a weak reference to the
+	 * iterator, so that the workers can tell when the caller has dropped the results.
+	 */
+	private class ParallelSearch {
+		private final SearchFilter filter;
+		private final Queue<Long> subtrees;
+		private final BlockingQueue<Node> results = new ArrayBlockingQueue<>(PARALLEL_SEARCH_QUEUE_SIZE);
+		private final AtomicInteger running;
+		private final WeakReference<?> consumer;
+		private volatile boolean stopped = false;
+		private volatile RuntimeException failure;
+
+		private ParallelSearch(SearchFilter filter, List<Long> subtrees, int workers, WeakReference<?> consumer) {
+			this.filter = filter;
+			this.subtrees = new ConcurrentLinkedQueue<>(subtrees);
+			this.running = new AtomicInteger(workers);
+			this.consumer = consumer;
+		}
+
+		private void work() {
+			try {
+				Long subtree;
+				while (!stopped && (subtree = subtrees.poll()) != null) {
+					try (Transaction tx = database.beginTx()) {
+						for (Node node : searchSubtree(filter, database.getNodeById(subtree), 1)) {
+							if (!handOver(node)) {
+								return;
+							}
+						}
+						tx.success();
+					}
+				}
+			} catch (InterruptedException e) {
+				failure = new RuntimeException("Interrupted during parallel RTree search", e);
+				stopped = true;
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				failure = e;
+				stopped = true;
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Wait for room in the results queue for as long as the caller keeps the results, telling the pool that this
+		 * thread is blocked.
+		 *
+		 * @return false if the search was stopped or dropped instead
+		 */
+		private boolean handOver(Node node) throws InterruptedException {
+			Handover handover = new Handover(node);
+			while (!handover.handed) {
+				if (stopped || consumer.get() == null) {
+					stopped = true;
+					return false;
+				}
+				ForkJoinPool.managedBlock(handover);
+			}
+			return true;
+		}
+
+		/**
+		 * The next result, waiting for the workers if needed, or null once they have all finished.
+		 */
+		private Node take() {
+			try {
+				while (true) {
+					Node node = results.poll(100, TimeUnit.MILLISECONDS);
+					if (node != null) {
+						return node;
+					}
+					if (failure != null) {
+						throw failure;
+					}
+					if (running.get() == 0) {
+						// the workers handed over their last results before finishing
+						return results.poll();
+					}
+				}
+			} catch (InterruptedException e) {
+				stopped = true;
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during parallel RTree search", e);
+			}
+		}
+
+		private class Handover implements ForkJoinPool.ManagedBlocker {
+			private final Node node;
+			private boolean handed = false;
+
+			private Handover(Node node) {
+				this.node = node;
+			}
+
+			@Override
+			public boolean block() throws InterruptedException {
+				// wake up now and then to notice a dropped search
+				handed = results.offer(node, 1, TimeUnit.SECONDS);
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return handed || (handed = results.offer(node));
+			}
+		}
+	}
+
+	private Iterable<Node> searchSubtree(SearchFilter filter, Node subtreeRoot, int depth) {
+		return () -> new SearchIterator(filter, subtreeRoot, depth);
+	}
+
+	/**
+	 * Search with all filters in one traversal. Each index node carries the set of filters that still need it, an
+	 * index node is only read if it is needed by at least one filter, and a child only inherits the filters that need
+	 * to visit its envelope. A geometry node is checked against the filters of its leaf and returned once, with all
+	 * the filters it matched. This reads every index node at most once, where searching the filters one by one reads
+	 * the upper levels once per filter.
+	 */
+	@Override
+	public List<MultiSearchResult> searchIndex(List<SearchFilter> filters) {
+		List<MultiSearchResult> results = new ArrayList<>();
+		if (filters.isEmpty()) {
+			return results;
+		}
+		try (Transaction tx = database.beginTx()) {
+			BitSet all = new BitSet(filters.size());
+			all.set(0, filters.size());
+			double[] geomBBox = newBBox();
+			Deque<NodeWithFilters> stack = new ArrayDeque<>();
+			stack.push(new NodeWithFilters(getIndexRoot(), all, 0));
+			while (!stack.isEmpty()) {
+				NodeWithFilters entry = stack.pop();
+				if (nodeIsLeaf(entry.node)) {
+					for (Relationship rel : entry.node.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+						Node geomNode = rel.getEndNode();
+						BitSet matched = new BitSet(filters.size());
+						for (int i = entry.filters.nextSetBit(0); i >= 0; i = entry.filters.nextSetBit(i + 1)) {
+							if (filters.get(i).geometryMatches(geomNode, geomBBox)) {
+								matched.set(i);
+							}
+						}
+						monitor.addCase(matched.isEmpty() ? "Geometry Does NOT Match" : "Geometry Matches");
+						if (!matched.isEmpty()) {
+							monitor.setHeight(entry.depth + 1);
+							results.add(new MultiSearchResult(geomNode, matched));
+						}
+					}
+				} else {
+					for (NodeWithEnvelope child : getIndexChildren(entry.node)) {
+						BitSet pending = new BitSet(filters.size());
+						for (int i = entry.filters.nextSetBit(0); i >= 0; i = entry.filters.nextSetBit(i + 1)) {
+							if (filters.get(i).needsToVisit(child.envelope)) {
+								pending.set(i);
+							}
+						}
+						boolean shouldContinue = !pending.isEmpty();
+						if (shouldContinue) monitor.matchedTreeNode(entry.depth + 1, child.node);
+						monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
+						if (shouldContinue) {
+							stack.push(new NodeWithFilters(child.node, pending, entry.depth + 1));
+						}
+					}
+				}
+			}
+			for (Node geomNode : getBufferedNodes()) {
+				BitSet matched = new BitSet(filters.size());
+				for (int i = 0; i < filters.size(); i++) {
+					if (filters.get(i).geometryMatches(geomNode, geomBBox)) {
+						matched.set(i);
+					}
+				}
+				if (!matched.isEmpty()) {
+					results.add(new MultiSearchResult(geomNode, matched));
+				}
+			}
+			tx.success();
+		}
+		return results;
+	}
+
+	private static class NodeWithFilters {
+		private final Node node;
+		private final BitSet filters;
+		private final int depth;
+
+		NodeWithFilters(Node node, BitSet filters, int depth) {
+			this.node = node;
+			this.filters = filters;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Best-first k-nearest-neighbour search, based on "Distance Browsing in Spatial Databases" by G. Hjaltason and
+	 * H. Samet. Index nodes and geometry nodes share one priority queue ordered by distance from the point. Index nodes
+	 * and not yet refined geometries are ordered by the lower bound given by the envelopeDistance, refined geometries
+	 * by the exact distance given by the geometryDistance. A geometry is only returned once it reaches the head of the
+	 * queue with its exact distance, so the results are ordered by distance and no subtree is read unless it could
+	 * still contain one of the k nearest geometries.
+	 *
+	 * @param point            the query point, in the same coordinates as the indexed envelopes
+	 * @param k                the number of geometries to find
+	 * @param envelopeDistance lower bound of the distance to the contents of an envelope
+	 * @param geometryDistance exact distance to a geometry node, in the same units as the envelopeDistance, or null to
+	 *                         use the distance to the geometry envelope
+	 * @return up to k geometry nodes, nearest first
+	 */
+	public List<NodeWithDistance> searchNearestNeighbours(double[] point, int k, EnvelopeDistance envelopeDistance, ToDoubleFunction<Node> geometryDistance) {
+		List<NodeWithDistance> results = new ArrayList<>(Math.max(k, 0));
+		if (k < 1) {
+			return results;
+		}
+		try (Transaction tx = database.beginTx()) {
+			PriorityQueue<NearestNeighbourCandidate> queue = new PriorityQueue<>();
+			Node indexRoot = getIndexRoot();
+			Envelope rootEnvelope = getIndexNodeEnvelope(indexRoot);
+			if (rootEnvelope != null) {
+				queue.add(new NearestNeighbourCandidate(indexRoot, envelopeDistance.minimumDistance(point, rootEnvelope), NearestNeighbourCandidate.INDEX_NODE));
+			}
+			for (Node geomNode : getBufferedNodes()) {
+				double bound = envelopeDistance.minimumDistance(point, getLeafNodeEnvelope(geomNode));
+				queue.add(new NearestNeighbourCandidate(geomNode, bound, geometryDistance == null ? NearestNeighbourCandidate.EXACT : NearestNeighbourCandidate.GEOMETRY_BOUND));
+			}
+			while (!queue.isEmpty() && results.size() < k) {
+				NearestNeighbourCandidate candidate = queue.poll();
+				switch (candidate.type) {
+					case NearestNeighbourCandidate.INDEX_NODE:
+						monitor.addCase("Index Matches");
+						if (nodeIsLeaf(candidate.node)) {
+							for (Relationship rel : candidate.node.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+								Node geomNode = rel.getEndNode();
+								double bound = envelopeDistance.minimumDistance(point, getLeafNodeEnvelope(geomNode));
+								queue.add(new NearestNeighbourCandidate(geomNode, bound, geometryDistance == null ? NearestNeighbourCandidate.EXACT : NearestNeighbourCandidate.GEOMETRY_BOUND));
+							}
+						} else {
+							for (Relationship rel : candidate.node.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+								Node child = rel.getEndNode();
+								Envelope childEnvelope = getIndexNodeEnvelope(child);
+								if (childEnvelope != null) {
+									queue.add(new NearestNeighbourCandidate(child, envelopeDistance.minimumDistance(point, childEnvelope), NearestNeighbourCandidate.INDEX_NODE));
+								}
+							}
+						}
+						break;
+					case NearestNeighbourCandidate.GEOMETRY_BOUND:
+						// the bound is the closest this geometry can be, now get the real distance and queue it again
+						double distance = Math.max(candidate.distance, geometryDistance.applyAsDouble(candidate.node));
+						queue.add(new NearestNeighbourCandidate(candidate.node, distance, NearestNeighbourCandidate.EXACT));
+						break;
+					default:
+						monitor.addCase("Geometry Matches");
+						results.add(new NodeWithDistance(candidate.node, candidate.distance));
+				}
+			}
+			tx.success();
+		}
+		return results;
+	}
+
+	public static class NodeWithDistance {
+		public final Node node;
+		public final double distance;
+
+		public NodeWithDistance(Node node, double distance) {
+			this.node = node;
+			this.distance = distance;
+		}
+	}
+
+	private static class NearestNeighbourCandidate implements Comparable<NearestNeighbourCandidate> {
+		static final int INDEX_NODE = 0;
+		static final int GEOMETRY_BOUND = 1;
+		static final int EXACT = 2;
+
+		private final Node node;
+		private final double distance;
+		private final int type;
+
+		NearestNeighbourCandidate(Node node, double distance, int type) {
+			this.node = node;
+			this.distance = distance;
+			this.type = type;
+		}
+
+		@Override
+		public int compareTo(NearestNeighbourCandidate other) {
+			int compare = Double.compare(distance, other.distance);
+			// on equal distance report exact geometries first, they cannot be beaten by anything else in the queue
+			return compare != 0 ? compare : Integer.compare(other.type, type);
+		}
+	}
+
+	/**
+	 * Spatial join by synchronized traversal, based on "Efficient Processing of Spatial Joins Using R-trees" by T.
+	 * Brinkhoff, H. Kriegel and B. Seeger. Starting with the two roots, a pair of index nodes is only expanded if
+	 * their envelopes intersect, and then only children intersecting the envelope of the other node are paired up.
+	 * When one tree is higher than the other, its side is descended alone until both reach the leaves.
+	 * <p>
+	 * The candidates are produced lazily, within the transaction of the caller. Each pair of geometry nodes with
+	 * intersecting envelopes is returned once. The candidates are not ordered: those of one geometry node of this
+	 * index come out together only within each pair of leaves, and the same geometry comes up again for every other
+	 * leaf of the other index it overlaps. Geometries in the write buffer of either index are joined last, with a
+	 * window search on the other side for each of them.
+	 *
+	 * @param other index of the layer to join with, in the same coordinate system
+	 */
+	public Iterator<NodePair> joinCandidates(RTreeIndex other) {
+		Iterator<NodePair> trees = new JoinIterator(other);
+		List<Node> leftBuffered = getBufferedNodes();
+		List<Node> rightBuffered = other.getBufferedNodes();
+		if (leftBuffered.isEmpty() && rightBuffered.isEmpty()) {
+			return trees;
+		}
+		// buffered geometries of this index against all of the other, then the tree of this index against the
+		// buffered geometries of the other, so that no pair comes up twice
+		Stream<NodePair> left = leftBuffered.stream().flatMap(geomNode -> StreamSupport.stream(
+				other.searchIndex(new SearchEnvelopeIntersection(other.envelopeDecoder, getLeafNodeEnvelope(geomNode))).spliterator(), false)
+				.map(otherNode -> new NodePair(geomNode, otherNode)));
+		Stream<NodePair> right = rightBuffered.stream().flatMap(otherNode -> StreamSupport.stream(
+				searchSubtree(new SearchEnvelopeIntersection(envelopeDecoder, other.getLeafNodeEnvelope(otherNode)), getIndexRoot(), 0).spliterator(), false)
+				.map(geomNode -> new NodePair(geomNode, otherNode)));
+		return Iterators.concat(trees, Stream.concat(left, right).iterator());
+	}
+
+	private static class SearchEnvelopeIntersection extends AbstractSearchEnvelopeIntersection {
+
+		SearchEnvelopeIntersection(EnvelopeDecoder decoder, Envelope referenceEnvelope) {
+			super(decoder, referenceEnvelope);
+		}
+
+		@Override
+		protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
+			return true;
+		}
+
+		@Override
+		protected boolean onBBoxIntersection(Node geomNode, double[] bbox) {
+			return true;
+		}
+	}
+
+	public static class NodePair {
+		public final Node left;
+		public final Node right;
+
+		public NodePair(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private class JoinIterator implements Iterator<NodePair> {
+		private final RTreeIndex other;
+		private final Deque<NodeWithEnvelope[]> pending = new ArrayDeque<>();
+		private final Deque<NodePair> candidates = new ArrayDeque<>();
+
+		JoinIterator(RTreeIndex other) {
+			this.other = other;
+			Node left = getIndexRoot();
+			Node right = other.getIndexRoot();
+			Envelope leftEnvelope = getIndexNodeEnvelope(left);
+			Envelope rightEnvelope = other.getIndexNodeEnvelope(right);
+			if (leftEnvelope != null && rightEnvelope != null && leftEnvelope.intersects(rightEnvelope)) {
+				pending.push(new NodeWithEnvelope[]{new NodeWithEnvelope(left, leftEnvelope), new NodeWithEnvelope(right, rightEnvelope)});
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (candidates.isEmpty() && !pending.isEmpty()) {
+				expand(pending.pop());
+			}
+			return !candidates.isEmpty();
+		}
+
+		@Override
+		public NodePair next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return candidates.poll();
+		}
+
+		private void expand(NodeWithEnvelope[] pair) {
+			NodeWithEnvelope left = pair[0];
+			NodeWithEnvelope right = pair[1];
+			boolean leftIsLeaf = nodeIsLeaf(left.node);
+			boolean rightIsLeaf = other.nodeIsLeaf(right.node);
+			if (leftIsLeaf && rightIsLeaf) {
+				List<NodeWithEnvelope> leftEntries = intersecting(getLeafEntries(RTreeIndex.this, left.node), right.envelope);
+				List<NodeWithEnvelope> rightEntries = intersecting(getLeafEntries(other, right.node), left.envelope);
+				for (NodeWithEnvelope leftEntry : leftEntries) {
+					for (NodeWithEnvelope rightEntry : rightEntries) {
+						if (leftEntry.envelope.intersects(rightEntry.envelope)) {
+							candidates.add(new NodePair(leftEntry.node, rightEntry.node));
+						}
+					}
+				}
+			} else if (leftIsLeaf) {
+				for (NodeWithEnvelope rightChild : intersecting(other.getIndexChildren(right.node), left.envelope)) {
+					pending.push(new NodeWithEnvelope[]{left, rightChild});
+				}
+			} else if (rightIsLeaf) {
+				for (NodeWithEnvelope leftChild : intersecting(getIndexChildren(left.node), right.envelope)) {
+					pending.push(new NodeWithEnvelope[]{leftChild, right});
+				}
+			} else {
+				List<NodeWithEnvelope> rightChildren = intersecting(other.getIndexChildren(right.node), left.envelope);
+				for (NodeWithEnvelope leftChild : intersecting(getIndexChildren(left.node), right.envelope)) {
+					for (NodeWithEnvelope rightChild : rightChildren) {
+						if (leftChild.envelope.intersects(rightChild.envelope)) {
+							pending.push(new NodeWithEnvelope[]{leftChild, rightChild});
+						}
+					}
+				}
+			}
+		}
+
+		private List<NodeWithEnvelope> getLeafEntries(RTreeIndex index, Node leaf) {
+			List<NodeWithEnvelope> entries = new ArrayList<>();
+			for (Relationship relationship : leaf.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+				Node geomNode = relationship.getEndNode();
+				entries.add(new NodeWithEnvelope(geomNode, index.getLeafNodeEnvelope(geomNode)));
+			}
+			return entries;
+		}
+
+		private List<NodeWithEnvelope> intersecting(List<NodeWithEnvelope> entries, Envelope envelope) {
+			List<NodeWithEnvelope> result = new ArrayList<>(entries.size());
+			for (NodeWithEnvelope entry : entries) {
+				if (entry.envelope != null && entry.envelope.intersects(envelope)) {
+					result.add(entry);
+				}
+			}
+			return result;
 		}
 	}
 
@@ -830,7 +2569,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	 * the layers domain-specific GeometryEncoder for decoding the envelope.
 	 */
 	public Envelope getLeafNodeEnvelope(Node geomNode) {
-		return envelopeDecoder.decodeEnvelope(geomNode);
+		Envelope envelope = envelopeDecoder.decodeEnvelope(geomNode);
+		if (envelope != null && envelope.getDimension() > 0 && envelope.getDimension() != dimensions) {
+			throw new IllegalArgumentException("The envelope of " + geomNode + " has " + envelope.getDimension()
+					+ " dimensions, but the index has " + dimensions);
+		}
+		return envelope;
 	}
 
 	/**
@@ -842,17 +2586,54 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		if (indexNode == null) {
 			indexNode = getIndexRoot();
 		}
+		double[] bbox = newBBox();
 		try (Transaction tx = database.beginTx()) {
-			if (!indexNode.hasProperty(INDEX_PROP_BBOX)) {
-				// this is ok after an index node split
-				tx.success();
-				return null;
-			}
-
-			double[] bbox = (double[]) indexNode.getProperty(INDEX_PROP_BBOX);
+			boolean found = readIndexNodeBBox(indexNode, bbox);
 			tx.success();
-			// Envelope parameters: xmin, xmax, ymin, ymax
-			return new Envelope(bbox[0], bbox[2], bbox[1], bbox[3]);
+			// this is ok after an index node split
+			return found ? toEnvelope(bbox) : null;
+		}
+	}
+
+	/**
+	 * Copy the bounding box of an index node into the given array, from the envelope cache if possible.
+	 *
+	 * @return false if the index node has no bounding box
+	 */
+	private boolean readIndexNodeBBox(Node indexNode, double[] bbox) {
+		if (envelopeCache != null && envelopeCacheSize > 0 && envelopeCache.get(indexNode.getId(), bbox)) {
+			return true;
+		}
+		long version = envelopeCache == null ? 0 : envelopeCache.version();
+		Object property = indexNode.getProperty(INDEX_PROP_BBOX, null);
+		if (property == null) {
+			return false;
+		}
+		System.arraycopy((double[]) property, 0, bbox, 0, bbox.length);
+		if (envelopeCache != null && envelopeCacheSize > 0) {
+			envelopeCache.put(indexNode.getId(), bbox, version);
+		}
+		return true;
+	}
+
+	private static Envelope toEnvelope(double[] bbox) {
+		return Envelope.fromBBox(bbox);
+	}
+
+	/**
+	 * An array for the bounding box of an index node or geometry: the minimums of each dimension followed by the
+	 * maximums, so xmin, ymin, xmax, ymax for a 2D index.
+	 */
+	private double[] newBBox() {
+		return new double[2 * dimensions];
+	}
+
+	/**
+	 * Forget the cached bounding box of an index node that is about to be changed or deleted.
+	 */
+	private void invalidateIndexNodeEnvelope(Node indexNode) {
+		if (envelopeCache != null) {
+			envelopeCache.invalidate(indexNode.getId());
 		}
 	}
 
@@ -895,15 +2676,32 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 			metadataNode = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
 
 			maxNodeReferences = (Integer) metadataNode.getProperty("maxNodeReferences");
+			if (dimensionsConfigured) {
+				applyDimensions(dimensions);
+			} else {
+				dimensions = (Integer) metadataNode.getProperty(KEY_DIMENSIONS, DEFAULT_DIMENSIONS);
+			}
+			if (packedChildEnvelopesConfigured) {
+				applyPackedChildEnvelopes(packedChildEnvelopes);
+			} else {
+				packedChildEnvelopes = (Boolean) metadataNode.getProperty(KEY_PACKED_CHILD_ENVELOPES, false);
+			}
 		} else {
 			// metadata initialization
 			metadataNode = database.createNode();
 			layerNode.createRelationshipTo(metadataNode, RTreeRelationshipTypes.RTREE_METADATA);
 
 			metadataNode.setProperty("maxNodeReferences", maxNodeReferences);
+			metadataNode.setProperty(KEY_PACKED_CHILD_ENVELOPES, packedChildEnvelopes);
+			metadataNode.setProperty(KEY_DIMENSIONS, dimensions);
+			metadataNode.setProperty(PROP_TOTAL_GEOMETRY_COUNT, 0);
+			metadataNode.setProperty(PROP_COUNT_MAINTAINED, true);
 		}
 
-		saveCount();
+		if (!metadataNode.hasProperty(PROP_COUNT_MAINTAINED)) {
+			// the count of indexes created before it was maintained is only a hint
+			recount();
+		}
 	}
 
 	private void initIndexRoot() {
@@ -915,35 +2713,65 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 	}
 
-	private Node getMetadataNode() {
-		if (metadataNode == null) {
-			metadataNode = getRootNode().getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+	private Node getMetadataNode() {
+		if (metadataNode == null) {
+			metadataNode = getRootNode().getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+		}
+
+		return metadataNode;
+	}
+
+	private static final String PROP_TOTAL_GEOMETRY_COUNT = "totalGeometryCount";
+	private static final String PROP_COUNT_MAINTAINED = "totalGeometryCountMaintained";
+	private static final String PROP_MODIFICATION_COUNT = "modificationCount";
+
+	/*
+	 * The number of geometries in the tree is kept on the metadata node and changed in the same transaction as the
+	 * tree, so it is the same for every RTreeIndex on the layer and count() does not need to look at the tree, only
+	 * adding the degree of the write buffer node. adjustCount locks the metadata node before reading the count, so concurrent transactions do
+	 * not overwrite each other's changes, and holds the lock until the transaction ends. With concurrentInsert the
+	 * count is only adjusted when the transaction commits, to keep that lock short.
+	 */
+
+	private int getStoredCount() {
+		return (Integer) getMetadataNode().getProperty(PROP_TOTAL_GEOMETRY_COUNT, 0);
+	}
+
+	private void adjustCount(int delta) {
+		if (delta != 0) {
+			try (Transaction tx = database.beginTx()) {
+				tx.acquireWriteLock(getMetadataNode());
+				getMetadataNode().setProperty(PROP_TOTAL_GEOMETRY_COUNT, getStoredCount() + delta);
+				getMetadataNode().setProperty(PROP_MODIFICATION_COUNT, getModificationCount() + 1);
+				tx.success();
+			}
 		}
+	}
 
-		return metadataNode;
+	/**
+	 * The number of changes to the geometry count, which tells rebuild whether the index was modified since it
+	 * started, also when as many geometries were removed as were added.
+	 */
+	private long getModificationCount() {
+		return (Long) getMetadataNode().getProperty(PROP_MODIFICATION_COUNT, 0L);
 	}
 
 	/**
-	 * Save the geometry count to the database if it has not been saved yet.
-	 * However, if the count is zero, first do an exhaustive search of the
-	 * tree and count everything before saving it.
+	 * Count the geometries in the tree by visiting the whole tree, and store the result as the geometry count of the
+	 * index. This repairs the count if it is ever wrong, and is done once for indexes created before the count was
+	 * maintained.
+	 *
+	 * @return the number of geometries in the index
 	 */
-	private void saveCount() {
-		if (totalGeometryCount == 0) {
+	public int recount() {
+		try (Transaction tx = database.beginTx()) {
 			SpatialIndexRecordCounter counter = new SpatialIndexRecordCounter();
 			visit(counter, getIndexRoot());
-			totalGeometryCount = counter.getResult();
-
-			int savedGeometryCount = (int)getMetadataNode().getProperty("totalGeometryCount",0);
-			countSaved = savedGeometryCount == totalGeometryCount;
-		}
-
-		if (!countSaved) {
-			try (Transaction tx = database.beginTx()) {
-				getMetadataNode().setProperty("totalGeometryCount", totalGeometryCount);
-				countSaved = true;
-				tx.success();
-			}
+			int count = counter.getResult();
+			getMetadataNode().setProperty(PROP_TOTAL_GEOMETRY_COUNT, count);
+			getMetadataNode().setProperty(PROP_COUNT_MAINTAINED, true);
+			tx.success();
+			return count + getBufferedCount();
 		}
 	}
 
@@ -952,67 +2780,69 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 	private Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
+		return chooseSubTree(getIndexChildrenForUpdate(parentIndexNode), getLeafNodeEnvelope(geomRootNode));
+	}
+
+	private Node chooseSubTree(List<NodeWithEnvelope> children, Envelope geomEnvelope) {
+		if (splitMode.equals(RSTAR_SPLIT)) {
+			return chooseSubTreeRStar(children, geomEnvelope);
+		}
+
 		// children that can contain the new geometry
-		List<Node> indexNodes = new ArrayList<>();
+		List<NodeWithEnvelope> indexNodes = new ArrayList<>();
 
 		// pick the child that contains the new geometry bounding box
-		Iterable<Relationship> relationships = parentIndexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
-		for (Relationship relation : relationships) {
-			Node indexNode = relation.getEndNode();
-			if (getIndexNodeEnvelope(indexNode).contains(getLeafNodeEnvelope(geomRootNode))) {
-				indexNodes.add(indexNode);
+		for (NodeWithEnvelope child : children) {
+			if (child.envelope.contains(geomEnvelope)) {
+				indexNodes.add(child);
 			}
 		}
 
 		if (indexNodes.size() > 1) {
 			return chooseIndexNodeWithSmallestArea(indexNodes);
 		} else if (indexNodes.size() == 1) {
-			return indexNodes.get(0);
+			return indexNodes.get(0).node;
 		}
 
 		// pick the child that needs the minimum enlargement to include the new geometry
 		double minimumEnlargement = Double.POSITIVE_INFINITY;
-		relationships = parentIndexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING);
-		for (Relationship relation : relationships) {
-			Node indexNode = relation.getEndNode();
-			double enlargementNeeded = getAreaEnlargement(indexNode, geomRootNode);
+		for (NodeWithEnvelope child : children) {
+			double enlargementNeeded = getAreaEnlargement(child.envelope, geomEnvelope);
 
 			if (enlargementNeeded < minimumEnlargement) {
 				indexNodes.clear();
-				indexNodes.add(indexNode);
+				indexNodes.add(child);
 				minimumEnlargement = enlargementNeeded;
 			} else if (enlargementNeeded == minimumEnlargement) {
-				indexNodes.add(indexNode);
+				indexNodes.add(child);
 			}
 		}
 
 		if (indexNodes.size() > 1) {
 			return chooseIndexNodeWithSmallestArea(indexNodes);
 		} else if (indexNodes.size() == 1) {
-			return indexNodes.get(0);
+			return indexNodes.get(0).node;
 		} else {
 			// this shouldn't happen
 			throw new RuntimeException("No IndexNode found for new geometry");
 		}
 	}
 
-	private double getAreaEnlargement(Node indexNode, Node geomRootNode) {
-		Envelope before = getIndexNodeEnvelope(indexNode);
-
-		Envelope after = getLeafNodeEnvelope(geomRootNode);
+	private double getAreaEnlargement(Envelope before, Envelope geomEnvelope) {
+		Envelope after = new Envelope(geomEnvelope);
 		after.expandToInclude(before);
 
 		return getArea(after) - getArea(before);
 	}
 
-	private Node chooseIndexNodeWithSmallestArea(List<Node> indexNodes) {
+	private Node chooseIndexNodeWithSmallestArea(List<NodeWithEnvelope> indexNodes) {
 		Node result = null;
 		double smallestArea = -1;
 
-		for (Node indexNode : indexNodes) {
-			double area = getArea(getIndexNodeEnvelope(indexNode));
+		for (NodeWithEnvelope indexNode : indexNodes) {
+			double area = getArea(indexNode.envelope);
 			if (result == null || area < smallestArea) {
-				result = indexNode;
+				result = indexNode.node;
 				smallestArea = area;
 			}
 		}
@@ -1020,14 +2850,144 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		return result;
 	}
 
+	/**
+	 * Index nodes have either RTREE_CHILD or RTREE_REFERENCE children, and keep their number in the childCount
+	 * property. Trees built before the property existed get it on the first count, after which every change to the
+	 * children updates it through adjustChildCount.
+	 */
 	private int countChildren(Node indexNode, RelationshipType relationshipType) {
+		if (indexNode.hasProperty(INDEX_PROP_CHILD_COUNT)) {
+			return (Integer) indexNode.getProperty(INDEX_PROP_CHILD_COUNT);
+		}
+		int counter = readChildCount(indexNode, relationshipType);
+		indexNode.setProperty(INDEX_PROP_CHILD_COUNT, counter);
+		return counter;
+	}
+
+	/**
+	 * Like countChildren, but without storing the count if the index node does not have it yet.
+	 */
+	private int readChildCount(Node indexNode, RelationshipType relationshipType) {
+		Object childCount = indexNode.getProperty(INDEX_PROP_CHILD_COUNT, null);
+		if (childCount != null) {
+			return (Integer) childCount;
+		}
 		int counter = 0;
-        for (Relationship ignored : indexNode.getRelationships(relationshipType, Direction.OUTGOING)) {
-            counter++;
-        }
+		for (Relationship ignored : indexNode.getRelationships(relationshipType, Direction.OUTGOING)) {
+			counter++;
+		}
+		return counter;
+	}
+
+	private void adjustChildCount(Node indexNode, int delta) {
+		Object childCount = indexNode.getProperty(INDEX_PROP_CHILD_COUNT, null);
+		if (childCount != null) {
+			indexNode.setProperty(INDEX_PROP_CHILD_COUNT, (Integer) childCount + delta);
+		}
+	}
+
+	/*
+	 * Index nodes with child index nodes can keep the number of geometries in their subtree in the geometryCount
+	 * property, which is exact whenever it is present. A node starts counting when it gets its first child index
+	 * node, and the counts of the nodes above change with every geometry or subtree attached below them. When a
+	 * subtree without a count is attached or detached the counts above it are removed, so older trees have no counts
+	 * until they are rebuilt. Leaves are counted by their childCount.
+	 */
+
+	/**
+	 * @return the number of geometries below the index node, or -1 if it is not known
+	 */
+	private long getGeometryCount(Node indexNode) {
+		Object count = indexNode.getProperty(INDEX_PROP_GEOMETRY_COUNT, null);
+		if (count != null) {
+			return (Long) count;
+		}
+		return nodeIsLeaf(indexNode) ? countReferences(indexNode) : -1;
+	}
+
+	/**
+	 * Count the references of a leaf like countChildren, but without storing the count, so it can be used in read
+	 * only transactions.
+	 */
+	private long countReferences(Node leaf) {
+		Object childCount = leaf.getProperty(INDEX_PROP_CHILD_COUNT, null);
+		if (childCount != null) {
+			return (Integer) childCount;
+		}
+		long counter = 0;
+		for (Relationship ignored : leaf.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)) {
+			counter++;
+		}
 		return counter;
 	}
 
+	private long getGeometryCount(Node child, RelationshipType relationshipType) {
+		return relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE ? 1 : getGeometryCount(child);
+	}
+
+	/**
+	 * Start counting the geometries below an index node that is about to get its first child index node.
+	 */
+	private void initGeometryCount(Node indexNode) {
+		if (!indexNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+			indexNode.setProperty(INDEX_PROP_GEOMETRY_COUNT, 0L);
+		}
+	}
+
+	private void geometriesAttached(Node indexNode, long count) {
+		if (count < 0) {
+			removeGeometryCounts(indexNode);
+		} else if (count > 0) {
+			adjustGeometryCounts(indexNode, count);
+		}
+	}
+
+	private void geometriesDetached(Node indexNode, long count) {
+		if (count < 0) {
+			removeGeometryCounts(indexNode);
+		} else if (count > 0) {
+			adjustGeometryCounts(indexNode, -count);
+		}
+	}
+
+	private void adjustGeometryCounts(Node indexNode, long delta) {
+		for (Node node = indexNode; node != null; node = getIndexNodeParent(node)) {
+			Object count = node.getProperty(INDEX_PROP_GEOMETRY_COUNT, null);
+			if (count != null) {
+				node.setProperty(INDEX_PROP_GEOMETRY_COUNT, (Long) count + delta);
+			}
+		}
+	}
+
+	private void removeGeometryCounts(Node indexNode) {
+		for (Node node = indexNode; node != null; node = getIndexNodeParent(node)) {
+			node.removeProperty(INDEX_PROP_GEOMETRY_COUNT);
+		}
+	}
+
+	/**
+	 * Recompute the geometry count of an index node from its children, if it has one.
+	 */
+	private void refreshGeometryCount(Node indexNode) {
+		if (!indexNode.hasProperty(INDEX_PROP_GEOMETRY_COUNT)) {
+			return;
+		}
+		long count = 0;
+		if (nodeIsLeaf(indexNode)) {
+			count = countReferences(indexNode);
+		} else {
+			for (Relationship relationship : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+				long childCount = getGeometryCount(relationship.getEndNode());
+				if (childCount < 0) {
+					indexNode.removeProperty(INDEX_PROP_GEOMETRY_COUNT);
+					return;
+				}
+				count += childCount;
+			}
+		}
+		indexNode.setProperty(INDEX_PROP_GEOMETRY_COUNT, count);
+	}
+
 	/**
 	 * @return is enlargement needed?
 	 */
@@ -1037,7 +2997,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 	private void splitAndAdjustPathBoundingBox(Node indexNode) {
         // create a new node and distribute the entries
-        Node newIndexNode = splitMode.equals(GREENES_SPLIT) ? greenesSplit(indexNode) : quadraticSplit(indexNode);
+        Node newIndexNode = splitNode(indexNode);
 		Node parent = getIndexNodeParent(indexNode);
 //        System.out.println("spitIndex " + newIndexNode.getId());
 //        System.out.println("parent " + parent.getId());
@@ -1058,6 +3018,267 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         monitor.addSplit(newIndexNode);
 	}
 
+    private Node splitNode(Node indexNode) {
+        switch (splitMode) {
+            case GREENES_SPLIT:
+                return greenesSplit(indexNode);
+            case RSTAR_SPLIT:
+                return rStarSplit(indexNode);
+            default:
+                return quadraticSplit(indexNode);
+        }
+    }
+
+    /*
+     * R*-tree insertion (Beckmann, Kriegel, Schneider and Seeger, 1990). Levels are counted from the bottom of the
+     * tree: the index nodes holding geometry references are on level 0, and entries of a node on level n are
+     * index nodes on level n - 1. An entry keeps its level when it is reinserted, even if the tree grows meanwhile.
+     */
+
+    private static final double RSTAR_MIN_FILL = 0.4;
+    private static final double RSTAR_REINSERT_FRACTION = 0.3;
+    private static final int RSTAR_OVERLAP_CANDIDATES = 32;
+
+    /**
+     * Insert an entry into an index node on the given level. The first overflow on each level during one top level
+     * insert is treated by reinserting the entries furthest from the centre of the node, later overflows by splitting.
+     */
+    private void insertAtLevel(Node entry, Envelope entryEnvelope, int level, Set<Integer> reinsertedLevels) {
+        Node indexNode = getIndexRoot();
+        int nodeLevel = getHeight(indexNode, 0) - 1;
+        while (nodeLevel > level) {
+            indexNode = chooseSubTreeRStar(indexNode, entryEnvelope);
+            nodeLevel--;
+        }
+
+        RelationshipType relationshipType = level == 0 ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        boolean enlarged = addChild(indexNode, relationshipType, entry);
+        if (countChildren(indexNode, relationshipType) > maxNodeReferences) {
+            overflowTreatment(indexNode, level, reinsertedLevels);
+        } else if (enlarged) {
+            adjustPathBoundingBox(indexNode);
+        }
+    }
+
+    private void overflowTreatment(Node indexNode, int level, Set<Integer> reinsertedLevels) {
+        Node parent = getIndexNodeParent(indexNode);
+        if (parent != null && reinsertedLevels.add(level)) {
+            reinsert(indexNode, level, reinsertedLevels);
+            return;
+        }
+
+        Node newIndexNode = rStarSplit(indexNode);
+        if (parent == null) {
+            createNewRoot(indexNode, newIndexNode);
+        } else {
+            expandParentBoundingBoxAfterNewChild(parent, (double[]) indexNode.getProperty(INDEX_PROP_BBOX));
+            addChild(parent, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
+            if (countChildren(parent, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
+                overflowTreatment(parent, level + 1, reinsertedLevels);
+            } else {
+                adjustPathBoundingBox(parent);
+            }
+        }
+        monitor.addSplit(newIndexNode);
+    }
+
+    /**
+     * Remove the entries whose centres are furthest from the centre of the overflowing node, shrink the path to it,
+     * and insert them again starting with the closest ("close reinsert").
+     */
+    private void reinsert(Node indexNode, int level, Set<Integer> reinsertedLevels) {
+        RelationshipType relationshipType = level == 0 ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+
+        Envelope nodeEnvelope = new Envelope(entries.get(0).envelope);
+        for (NodeWithEnvelope entry : entries) {
+            nodeEnvelope.expandToInclude(entry.envelope);
+        }
+        Map<NodeWithEnvelope, Double> distances = new IdentityHashMap<>();
+        for (NodeWithEnvelope entry : entries) {
+            double distance = 0.0;
+            for (int i = 0; i < nodeEnvelope.getDimension(); i++) {
+                double delta = entry.envelope.centre(i) - nodeEnvelope.centre(i);
+                distance += delta * delta;
+            }
+            distances.put(entry, distance);
+        }
+        entries.sort(Comparator.comparingDouble(distances::get));
+
+        int reinsertCount = Math.max(1, (int) Math.round(entries.size() * RSTAR_REINSERT_FRACTION));
+        List<NodeWithEnvelope> kept = new ArrayList<>(entries.subList(0, entries.size() - reinsertCount));
+        List<NodeWithEnvelope> removed = new ArrayList<>(entries.subList(entries.size() - reinsertCount, entries.size()));
+
+        connectChildren(indexNode, kept, relationshipType);
+        adjustPathBoundingBox(indexNode);
+
+        for (NodeWithEnvelope entry : removed) {
+            insertAtLevel(entry.node, entry.envelope, level, reinsertedLevels);
+        }
+    }
+
+    /**
+     * Choose the child to descend into: least overlap enlargement when the children hold geometry references, least
+     * area enlargement higher up. As suggested in the paper, the overlap is only computed for the children with the
+     * least area enlargement, since it is quadratic in the number of children.
+     */
+    private Node chooseSubTreeRStar(Node parentIndexNode, Envelope entryEnvelope) {
+        return chooseSubTreeRStar(getIndexChildrenForUpdate(parentIndexNode), entryEnvelope);
+    }
+
+    private Node chooseSubTreeRStar(List<NodeWithEnvelope> children, Envelope entryEnvelope) {
+        if (children.isEmpty()) {
+            // this shouldn't happen
+            throw new RuntimeException("No IndexNode found for new geometry");
+        }
+
+        Map<NodeWithEnvelope, Double> areaEnlargements = new IdentityHashMap<>();
+        for (NodeWithEnvelope child : children) {
+            Envelope enlarged = new Envelope(child.envelope);
+            enlarged.expandToInclude(entryEnvelope);
+            areaEnlargements.put(child, getArea(enlarged) - getArea(child.envelope));
+        }
+        Comparator<NodeWithEnvelope> byAreaEnlargement = Comparator.comparingDouble((NodeWithEnvelope child) -> areaEnlargements.get(child))
+                .thenComparingDouble(child -> getArea(child.envelope));
+
+        if (!nodeIsLeaf(children.get(0).node)) {
+            return Collections.min(children, byAreaEnlargement).node;
+        }
+
+        children.sort(byAreaEnlargement);
+        NodeWithEnvelope best = null;
+        double bestOverlapEnlargement = Double.POSITIVE_INFINITY;
+        for (NodeWithEnvelope candidate : children.subList(0, Math.min(RSTAR_OVERLAP_CANDIDATES, children.size()))) {
+            Envelope enlarged = new Envelope(candidate.envelope);
+            enlarged.expandToInclude(entryEnvelope);
+            double overlapEnlargement = 0.0;
+            for (NodeWithEnvelope other : children) {
+                if (other != candidate) {
+                    overlapEnlargement += overlapArea(enlarged, other.envelope) - overlapArea(candidate.envelope, other.envelope);
+                }
+            }
+            // candidates are in order of area enlargement, so keeping the first one resolves ties as the paper does
+            if (overlapEnlargement < bestOverlapEnlargement) {
+                best = candidate;
+                bestOverlapEnlargement = overlapEnlargement;
+            }
+        }
+        return best.node;
+    }
+
+    private Node rStarSplit(Node indexNode) {
+        if (nodeIsLeaf(indexNode)) {
+            return rStarSplit(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+        } else {
+            return rStarSplit(indexNode, RTreeRelationshipTypes.RTREE_CHILD);
+        }
+    }
+
+    /**
+     * Split along the axis where the distributions have the smallest total margin, and on that axis pick the
+     * distribution with the least overlap between the two groups, then the least total area.
+     */
+    private Node rStarSplit(Node indexNode, RelationshipType relationshipType) {
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+        int minFill = Math.max(1, (int) ((entries.size() - 1) * RSTAR_MIN_FILL));
+        int dimension = entries.get(0).envelope.getDimension();
+
+        int splitAxis = 0;
+        double minMargin = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < dimension; axis++) {
+            double margin = 0.0;
+            for (Comparator<NodeWithEnvelope> order : axisOrders(axis)) {
+                entries.sort(order);
+                Envelope[] lower = lowerGroupEnvelopes(entries);
+                Envelope[] upper = upperGroupEnvelopes(entries);
+                for (int splitAt = minFill; splitAt <= entries.size() - minFill; splitAt++) {
+                    margin += getMargin(lower[splitAt - 1]) + getMargin(upper[splitAt]);
+                }
+            }
+            if (margin < minMargin) {
+                minMargin = margin;
+                splitAxis = axis;
+            }
+        }
+
+        List<NodeWithEnvelope> left = null;
+        List<NodeWithEnvelope> right = null;
+        double minOverlap = Double.POSITIVE_INFINITY;
+        double minArea = Double.POSITIVE_INFINITY;
+        for (Comparator<NodeWithEnvelope> order : axisOrders(splitAxis)) {
+            entries.sort(order);
+            Envelope[] lower = lowerGroupEnvelopes(entries);
+            Envelope[] upper = upperGroupEnvelopes(entries);
+            for (int splitAt = minFill; splitAt <= entries.size() - minFill; splitAt++) {
+                double overlap = overlapArea(lower[splitAt - 1], upper[splitAt]);
+                double area = getArea(lower[splitAt - 1]) + getArea(upper[splitAt]);
+                if (overlap < minOverlap || (overlap == minOverlap && area < minArea)) {
+                    minOverlap = overlap;
+                    minArea = area;
+                    left = new ArrayList<>(entries.subList(0, splitAt));
+                    right = new ArrayList<>(entries.subList(splitAt, entries.size()));
+                }
+            }
+        }
+
+        return reconnectTwoChildGroups(indexNode, left, right, relationshipType);
+    }
+
+    private static List<Comparator<NodeWithEnvelope>> axisOrders(int axis) {
+        return Arrays.asList(
+                Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMin(axis)).thenComparingDouble(e -> e.envelope.getMax(axis)),
+                Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMax(axis)).thenComparingDouble(e -> e.envelope.getMin(axis)));
+    }
+
+    /**
+     * @return the envelope of the first i + 1 entries at index i
+     */
+    private static Envelope[] lowerGroupEnvelopes(List<NodeWithEnvelope> entries) {
+        Envelope[] envelopes = new Envelope[entries.size()];
+        Envelope envelope = new Envelope(entries.get(0).envelope);
+        for (int i = 0; i < entries.size(); i++) {
+            envelope.expandToInclude(entries.get(i).envelope);
+            envelopes[i] = new Envelope(envelope);
+        }
+        return envelopes;
+    }
+
+    /**
+     * @return the envelope of the entries from i to the end at index i
+     */
+    private static Envelope[] upperGroupEnvelopes(List<NodeWithEnvelope> entries) {
+        Envelope[] envelopes = new Envelope[entries.size()];
+        Envelope envelope = new Envelope(entries.get(entries.size() - 1).envelope);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            envelope.expandToInclude(entries.get(i).envelope);
+            envelopes[i] = new Envelope(envelope);
+        }
+        return envelopes;
+    }
+
+    private static double getMargin(Envelope envelope) {
+        double margin = 0.0;
+        for (int i = 0; i < envelope.getDimension(); i++) {
+            margin += envelope.getWidth(i);
+        }
+        return margin;
+    }
+
+    /**
+     * The absolute volume of the intersection, unlike Envelope.overlap which is relative to the smaller envelope.
+     */
+    static double overlapArea(Envelope a, Envelope b) {
+        double area = 1.0;
+        for (int i = 0; i < a.getDimension(); i++) {
+            double width = Math.min(a.getMax(i), b.getMax(i)) - Math.max(a.getMin(i), b.getMin(i));
+            if (width <= 0.0) {
+                return 0.0;
+            }
+            area *= width;
+        }
+        return area;
+    }
+
     private Node quadraticSplit(Node indexNode) {
         if (nodeIsLeaf(indexNode)) {
             return quadraticSplit(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
@@ -1117,12 +3338,18 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     private List<NodeWithEnvelope> extractChildNodesWithEnvelopes(Node indexNode, RelationshipType relationshipType) {
         List<NodeWithEnvelope> entries = new ArrayList<>();
 
+        long geometryCount = 0;
         Iterable<Relationship> relationships = indexNode.getRelationships(relationshipType, Direction.OUTGOING);
         for (Relationship relationship : relationships) {
             Node node = relationship.getEndNode();
             entries.add(new NodeWithEnvelope(node, getChildNodeEnvelope(node, relationshipType)));
+            long childCount = getGeometryCount(node, relationshipType);
+            geometryCount = geometryCount < 0 || childCount < 0 ? -1 : geometryCount + childCount;
             relationship.delete();
         }
+        invalidatePackedChildren(indexNode);
+        adjustChildCount(indexNode, -entries.size());
+        geometriesDetached(indexNode, geometryCount);
         return entries;
     }
 
@@ -1225,6 +3452,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     private Node reconnectTwoChildGroups(Node indexNode, List<NodeWithEnvelope> group1, List<NodeWithEnvelope> group2, RelationshipType relationshipType) {
         // reset bounding box and add new children
+        invalidateIndexNodeEnvelope(indexNode);
         indexNode.removeProperty(INDEX_PROP_BBOX);
         for (NodeWithEnvelope entry : group1) {
             addChild(indexNode, relationshipType, entry.node);
@@ -1250,11 +3478,16 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 	private boolean addChild(Node parent, RelationshipType type, Node newChild) {
-		Envelope childEnvelope = getChildNodeEnvelope(newChild, type);
-		double[] childBBox = new double[]{
-			childEnvelope.getMinX(), childEnvelope.getMinY(),
-			childEnvelope.getMaxX(), childEnvelope.getMaxY()};
+		double[] childBBox = getChildNodeEnvelope(newChild, type).toBBox();
+		if (type == RTreeRelationshipTypes.RTREE_CHILD) {
+			initGeometryCount(parent);
+		}
 		parent.createRelationshipTo(newChild, type);
+		adjustChildCount(parent, 1);
+		geometriesAttached(parent, getGeometryCount(newChild, type));
+		if (type == RTreeRelationshipTypes.RTREE_CHILD) {
+			appendPackedChild(parent, newChild, childBBox);
+		}
 		return expandParentBoundingBoxAfterNewChild(parent, childBBox);
 	}
 
@@ -1292,14 +3525,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
 		if (bbox == null) {
 			// this could happen in an empty tree
-			bbox = new Envelope(0, 0, 0, 0);
+			bbox = new Envelope(new double[dimensions]);
 		}
 
-		if (old == null || old.length != 4
-			|| bbox.getMinX() != old[0]
-			|| bbox.getMinY() != old[1]
-			|| bbox.getMaxX() != old[2]
-			|| bbox.getMaxY() != old[3]) {
+		if (old == null || !Arrays.equals(old, bbox.toBBox())) {
 			setIndexNodeEnvelope(indexNode, bbox);
 			return true;
 		} else {
@@ -1308,7 +3537,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	}
 
 	protected void setIndexNodeEnvelope(Node indexNode, Envelope bbox) {
-		indexNode.setProperty(INDEX_PROP_BBOX, new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()});
+		invalidateIndexNodeEnvelope(indexNode);
+		double[] bboxValue = bbox.toBBox();
+		indexNode.setProperty(INDEX_PROP_BBOX, bboxValue);
+		updatePackedChildEnvelope(indexNode, bboxValue);
 	}
 
 	/**
@@ -1319,25 +3551,41 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	 * @return is bbox changed?
 	 */
 	protected boolean expandParentBoundingBoxAfterNewChild(Node parent, double[] childBBox) {
+		invalidateIndexNodeEnvelope(parent);
 		if (!parent.hasProperty(INDEX_PROP_BBOX)) {
-			parent.setProperty(INDEX_PROP_BBOX, new double[]{childBBox[0], childBBox[1], childBBox[2], childBBox[3]});
+			double[] parentBBox = childBBox.clone();
+			parent.setProperty(INDEX_PROP_BBOX, parentBBox);
+			updatePackedChildEnvelope(parent, parentBBox);
 			return true;
 		}
 
 		double[] parentBBox = (double[]) parent.getProperty(INDEX_PROP_BBOX);
 
-		boolean valueChanged = setMin(parentBBox, childBBox, 0);
-		valueChanged = setMin(parentBBox, childBBox, 1) || valueChanged;
-		valueChanged = setMax(parentBBox, childBBox, 2) || valueChanged;
-		valueChanged = setMax(parentBBox, childBBox, 3) || valueChanged;
+		boolean valueChanged = expandBBox(parentBBox, childBBox);
 
 		if (valueChanged) {
 			parent.setProperty(INDEX_PROP_BBOX, parentBBox);
+			updatePackedChildEnvelope(parent, parentBBox);
 		}
 
 		return valueChanged;
 	}
 
+	/**
+	 * Expand a bounding box to include another one, both laid out as the minimums followed by the maximums.
+	 *
+	 * @return is the bounding box changed?
+	 */
+	private boolean expandBBox(double[] parent, double[] child) {
+		int dimension = parent.length / 2;
+		boolean valueChanged = false;
+		for (int i = 0; i < dimension; i++) {
+			valueChanged = setMin(parent, child, i) || valueChanged;
+			valueChanged = setMax(parent, child, dimension + i) || valueChanged;
+		}
+		return valueChanged;
+	}
+
 	private boolean setMin(double[] parent, double[] child, int index) {
 		if (parent[index] > child[index]) {
 			parent[index] = child[index];
@@ -1365,6 +3613,184 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 		}
 	}
 
+	/*
+	 * Packed child envelopes: with KEY_PACKED_CHILD_ENVELOPES every index node with RTREE_CHILD children can hold
+	 * their ids and bounding boxes (in bbox order, four doubles each in 2D) in two parallel array properties, so that
+	 * choosing a subtree reads one node instead of all children. The arrays are only written on the write paths: bulk
+	 * loading writes them for the index nodes it connects, and an insert choosing a subtree writes them for an index
+	 * node that does not have them yet. Adding a child appends to them and a changed child bounding box is written
+	 * through, while any other change to the children, like a split, removes them until the next insert. Searches
+	 * read the children from the relationships where the arrays are missing, so they never write.
+	 */
+
+	private List<NodeWithEnvelope> getPackedIndexChildren(Node indexNode) {
+		if (!indexNode.hasProperty(INDEX_PROP_CHILD_IDS)) {
+			return readIndexChildren(indexNode);
+		}
+		long[] childIds = (long[]) indexNode.getProperty(INDEX_PROP_CHILD_IDS);
+		double[] childBBoxes = (double[]) indexNode.getProperty(INDEX_PROP_CHILD_BBOXES);
+		List<NodeWithEnvelope> result = new ArrayList<>(childIds.length);
+		int stride = 2 * dimensions;
+		for (int i = 0; i < childIds.length; i++) {
+			Envelope envelope = Envelope.fromBBox(Arrays.copyOfRange(childBBoxes, i * stride, (i + 1) * stride));
+			result.add(new NodeWithEnvelope(database.getNodeById(childIds[i]), envelope));
+		}
+		return result;
+	}
+
+	/**
+	 * The children of the index node for an insert, which packs them if they are not packed yet.
+	 */
+	private List<NodeWithEnvelope> getIndexChildrenForUpdate(Node indexNode) {
+		if (!packedChildEnvelopes || indexNode.hasProperty(INDEX_PROP_CHILD_IDS)) {
+			return getIndexChildren(indexNode);
+		}
+		List<NodeWithEnvelope> result = readIndexChildren(indexNode);
+		packChildren(indexNode, result);
+		return result;
+	}
+
+	private List<NodeWithEnvelope> readIndexChildren(Node indexNode) {
+		List<NodeWithEnvelope> result = new ArrayList<>();
+		for (Relationship r : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+			Node child = r.getEndNode();
+			result.add(new NodeWithEnvelope(child, getIndexNodeEnvelope(child)));
+		}
+		return result;
+	}
+
+	private void packChildren(Node indexNode, List<NodeWithEnvelope> result) {
+		if (!packedChildEnvelopes || result.isEmpty() || result.stream().anyMatch(child -> child.envelope == null)) {
+			// leaves have nothing to pack, and children without a bounding box are still being built
+			return;
+		}
+		long[] childIds = new long[result.size()];
+		int stride = 2 * dimensions;
+		double[] childBBoxes = new double[result.size() * stride];
+		for (int i = 0; i < result.size(); i++) {
+			childIds[i] = result.get(i).node.getId();
+			System.arraycopy(result.get(i).envelope.toBBox(), 0, childBBoxes, i * stride, stride);
+		}
+		indexNode.setProperty(INDEX_PROP_CHILD_IDS, childIds);
+		indexNode.setProperty(INDEX_PROP_CHILD_BBOXES, childBBoxes);
+	}
+
+	private void appendPackedChild(Node parent, Node child, double[] childBBox) {
+		if (!packedChildEnvelopes || !parent.hasProperty(INDEX_PROP_CHILD_IDS)) {
+			return;
+		}
+		long[] childIds = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS);
+		double[] childBBoxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+		childIds = Arrays.copyOf(childIds, childIds.length + 1);
+		childIds[childIds.length - 1] = child.getId();
+		childBBoxes = Arrays.copyOf(childBBoxes, childBBoxes.length + childBBox.length);
+		System.arraycopy(childBBox, 0, childBBoxes, childBBoxes.length - childBBox.length, childBBox.length);
+		parent.setProperty(INDEX_PROP_CHILD_IDS, childIds);
+		parent.setProperty(INDEX_PROP_CHILD_BBOXES, childBBoxes);
+	}
+
+	private void updatePackedChildEnvelope(Node indexNode, double[] bbox) {
+		if (!packedChildEnvelopes) {
+			return;
+		}
+		Node parent = getIndexNodeParent(indexNode);
+		if (parent == null || !parent.hasProperty(INDEX_PROP_CHILD_IDS)) {
+			return;
+		}
+		long[] childIds = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS);
+		for (int i = 0; i < childIds.length; i++) {
+			if (childIds[i] == indexNode.getId()) {
+				double[] childBBoxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+				System.arraycopy(bbox, 0, childBBoxes, i * bbox.length, bbox.length);
+				parent.setProperty(INDEX_PROP_CHILD_BBOXES, childBBoxes);
+				return;
+			}
+		}
+		// the child was connected without going through addChild
+		invalidatePackedChildren(parent);
+	}
+
+	private void invalidatePackedChildren(Node indexNode) {
+		if (packedChildEnvelopes && indexNode.hasProperty(INDEX_PROP_CHILD_IDS)) {
+			indexNode.removeProperty(INDEX_PROP_CHILD_IDS);
+			indexNode.removeProperty(INDEX_PROP_CHILD_BBOXES);
+		}
+	}
+
+	/**
+	 * The layout is stored with the tree metadata, like maxNodeReferences, so that every RTreeIndex instance on the
+	 * layer keeps the packed arrays up to date once any of them has started using them. Switching it off removes the
+	 * arrays from the whole tree.
+	 */
+	private void setPackedChildEnvelopes(boolean packed) {
+		packedChildEnvelopesConfigured = true;
+		if (metadataNode == null) {
+			// not initialized yet, initIndexMetadata will apply it
+			packedChildEnvelopes = packed;
+			return;
+		}
+		try (Transaction tx = database.beginTx()) {
+			applyPackedChildEnvelopes(packed);
+			tx.success();
+		}
+	}
+
+	private void applyPackedChildEnvelopes(boolean packed) {
+		Node metadata = getMetadataNode();
+		boolean stored = (Boolean) metadata.getProperty(KEY_PACKED_CHILD_ENVELOPES, false);
+		if (stored && !packed) {
+			for (Node indexNode : getAllIndexInternalNodes()) {
+				indexNode.removeProperty(INDEX_PROP_CHILD_IDS);
+				indexNode.removeProperty(INDEX_PROP_CHILD_BBOXES);
+			}
+		}
+		if (stored != packed) {
+			metadata.setProperty(KEY_PACKED_CHILD_ENVELOPES, packed);
+		}
+		packedChildEnvelopes = packed;
+	}
+
+	/**
+	 * The number of dimensions is stored with the tree metadata, like maxNodeReferences, as it decides the layout of
+	 * every bounding box in the tree: the minimums of each dimension followed by the maximums, so xmin, ymin, xmax,
+	 * ymax in 2D and xmin, ymin, zmin, tmin, xmax, ymax, zmax, tmax with z and time. It can only be changed while the
+	 * index is empty. The splits compare the widths and areas of the dimensions with each other, so z and time should
+	 * be stored in units of a similar scale to x and y.
+	 */
+	private void setDimensions(int dimensions) {
+		dimensionsConfigured = true;
+		if (metadataNode == null) {
+			// not initialized yet, initIndexMetadata will apply it
+			this.dimensions = dimensions;
+			return;
+		}
+		try (Transaction tx = database.beginTx()) {
+			applyDimensions(dimensions);
+			tx.success();
+		}
+	}
+
+	private void applyDimensions(int dimensions) {
+		Node metadata = getMetadataNode();
+		int stored = (Integer) metadata.getProperty(KEY_DIMENSIONS, DEFAULT_DIMENSIONS);
+		if (stored != dimensions) {
+			if (getStoredCount() > 0) {
+				throw new IllegalArgumentException("Cannot change the dimensions of an RTreeIndex with geometries from "
+						+ stored + " to " + dimensions);
+			}
+			// the empty root keeps the bounding box of the last geometries removed
+			Node root = getIndexRoot();
+			invalidateIndexNodeEnvelope(root);
+			root.removeProperty(INDEX_PROP_BBOX);
+			metadata.setProperty(KEY_DIMENSIONS, dimensions);
+		}
+		this.dimensions = dimensions;
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
 	private double getArea(Envelope e) {
 		return e.getArea();
 	}
@@ -1380,8 +3806,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 			deleteRecursivelySubtree(relationship.getEndNode(),relationship);
 		}
 		if (incoming!=null) {
+			invalidatePackedChildren(incoming.getStartNode());
+			adjustChildCount(incoming.getStartNode(), -1);
+			geometriesDetached(incoming.getStartNode(), getGeometryCount(node));
 			incoming.delete();
 		}
+		invalidateIndexNodeEnvelope(node);
         for (Relationship rel : node.getRelationships()) {
             System.out.println("Unexpected relationship found on " + node + ": " + rel.toString());
             rel.delete();
@@ -1393,8 +3823,28 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         return geomNode.hasRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
     }
 
+    /**
+     * While the tree is being rebuilt a geometry node is referenced from a leaf of the old and of the new tree, in
+     * which case the leaf of the tree currently attached to the layer is returned.
+     */
     protected Node findLeafContainingGeometryNode(Node geomNode) {
-        return geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode();
+        Node leaf = null;
+        for (Relationship reference : geomNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)) {
+            if (leaf != null && isIndexNodeInThisIndex(leaf)) {
+                return leaf;
+            }
+            leaf = reference.getStartNode();
+        }
+        return leaf;
+    }
+
+    private Relationship getReference(Node indexNode, Node geomNode) {
+        for (Relationship reference : geomNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)) {
+            if (reference.getStartNode().equals(indexNode)) {
+                return reference;
+            }
+        }
+        return null;
     }
 
     protected boolean isIndexNodeInThisIndex(Node indexNode) {
@@ -1442,11 +3892,21 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 	private EnvelopeDecoder envelopeDecoder;
 	private int maxNodeReferences;
     private String splitMode = GREENES_SPLIT;
+    private String bulkLoadMode = OMT_BULK_LOAD;
     private boolean shouldMergeTrees = false;
 
+    private int envelopeCacheSize = DEFAULT_ENVELOPE_CACHE_SIZE;
+    private int searchParallelism = 1;
+    private boolean packedChildEnvelopes = false;
+    private boolean packedChildEnvelopesConfigured = false;
+    private boolean dimensionsConfigured = false;
+    private boolean concurrentInsert = false;
+    private int writeBufferSize = 0;
+    private int dimensions = DEFAULT_DIMENSIONS;
+
+    private IndexNodeEnvelopeCache envelopeCache;
+
     private Node metadataNode;
-	private int totalGeometryCount = 0;
-	private boolean countSaved = false;
 
 	// Private classes
 	private class WarmUpVisitor implements SpatialIndexVisitor {
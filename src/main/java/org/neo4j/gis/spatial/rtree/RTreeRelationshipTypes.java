@@ -27,6 +27,9 @@ public enum RTreeRelationshipTypes implements RelationshipType {
 	RTREE_METADATA, 
 	RTREE_ROOT, 
 	RTREE_CHILD, 
-	RTREE_REFERENCE
+	RTREE_REFERENCE,
+	RTREE_BUFFER,
+	RTREE_BUFFERED,
+	RTREE_DETACHED
 	
 }
\ No newline at end of file
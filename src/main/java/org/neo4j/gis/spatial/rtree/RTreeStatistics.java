@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shape of an RTree, collected by RTreeIndex.getStatistics in one walk over all index nodes. Levels are numbered
+ * from the root, which is level 0. Overlap is measured between siblings, since those are the nodes a query has to
+ * choose between, and is reported on the level of the siblings.
+ */
+public class RTreeStatistics {
+
+	public static final int FILL_HISTOGRAM_BUCKETS = 10;
+
+	private final int maxNodeReferences;
+	private final Envelope extent;
+	private final double[] queryWindow;
+
+	private final List<Long> nodesPerLevel = new ArrayList<>();
+	private final List<Double> overlapPerLevel = new ArrayList<>();
+	private final long[] fillHistogram = new long[FILL_HISTOGRAM_BUCKETS];
+	private double deadSpaceSum = 0.0;
+	private long deadSpaceNodes = 0;
+	private double minAspectRatio = Double.POSITIVE_INFINITY;
+	private double maxAspectRatio = 0.0;
+	private double aspectRatioSum = 0.0;
+	private long aspectRatioLeaves = 0;
+	private long degenerateLeaves = 0;
+	private double pagesPerQuery = 0.0;
+
+	/**
+	 * @param extent        envelope of the root, the space the query window is taken from
+	 * @param queryFraction size of the query window for the pages per query estimate, as a fraction of the extent
+	 */
+	RTreeStatistics(int maxNodeReferences, Envelope extent, double queryFraction) {
+		this.maxNodeReferences = maxNodeReferences;
+		this.extent = extent;
+		if (extent == null) {
+			this.queryWindow = new double[0];
+		} else {
+			// a window with the same proportions as the extent
+			this.queryWindow = new double[extent.getDimension()];
+			double side = Math.pow(queryFraction, 1.0 / extent.getDimension());
+			for (int i = 0; i < queryWindow.length; i++) {
+				queryWindow[i] = extent.getWidth(i) * side;
+			}
+		}
+	}
+
+	void addIndexNode(int level, Envelope envelope, List<Envelope> children, boolean leaf) {
+		while (nodesPerLevel.size() <= level + 1) {
+			nodesPerLevel.add(0L);
+			overlapPerLevel.add(0.0);
+		}
+		nodesPerLevel.set(level, nodesPerLevel.get(level) + 1);
+
+		int bucket = (int) (FILL_HISTOGRAM_BUCKETS * (double) children.size() / maxNodeReferences);
+		fillHistogram[Math.max(0, Math.min(FILL_HISTOGRAM_BUCKETS - 1, bucket))]++;
+
+		if (envelope == null) {
+			return;
+		}
+
+		double area = envelope.getArea();
+		if (area > 0.0) {
+			double childArea = 0.0;
+			for (Envelope child : children) {
+				childArea += child.getArea();
+			}
+			// children overlapping each other can cover more than the parent, which counts as no dead space
+			deadSpaceSum += Math.max(0.0, 1.0 - childArea / area);
+			deadSpaceNodes++;
+		}
+
+		if (!leaf) {
+			double overlap = 0.0;
+			for (int i = 0; i < children.size(); i++) {
+				for (int j = i + 1; j < children.size(); j++) {
+					overlap += RTreeIndex.overlapArea(children.get(i), children.get(j));
+				}
+			}
+			overlapPerLevel.set(level + 1, overlapPerLevel.get(level + 1) + overlap);
+		} else {
+			double minWidth = Double.POSITIVE_INFINITY;
+			double maxWidth = 0.0;
+			for (int i = 0; i < envelope.getDimension(); i++) {
+				minWidth = Math.min(minWidth, envelope.getWidth(i));
+				maxWidth = Math.max(maxWidth, envelope.getWidth(i));
+			}
+			if (minWidth > 0.0) {
+				double aspectRatio = maxWidth / minWidth;
+				minAspectRatio = Math.min(minAspectRatio, aspectRatio);
+				maxAspectRatio = Math.max(maxAspectRatio, aspectRatio);
+				aspectRatioSum += aspectRatio;
+				aspectRatioLeaves++;
+			} else {
+				degenerateLeaves++;
+			}
+		}
+
+		pagesPerQuery += accessProbability(envelope);
+	}
+
+	/**
+	 * Kamel and Faloutsos: a node is read by a query window placed uniformly at random if the window intersects it,
+	 * which happens with probability (width + window width) / extent width in each dimension.
+	 */
+	private double accessProbability(Envelope envelope) {
+		double probability = 1.0;
+		for (int i = 0; i < queryWindow.length; i++) {
+			double extentWidth = extent.getWidth(i);
+			if (extentWidth > 0.0) {
+				probability *= Math.min(1.0, (envelope.getWidth(i) + queryWindow[i]) / extentWidth);
+			}
+		}
+		return probability;
+	}
+
+	public int getHeight() {
+		int height = nodesPerLevel.size();
+		while (height > 0 && nodesPerLevel.get(height - 1) == 0) {
+			height--;
+		}
+		return height;
+	}
+
+	public List<Long> getNodesPerLevel() {
+		return new ArrayList<>(nodesPerLevel.subList(0, getHeight()));
+	}
+
+	/**
+	 * Number of index nodes by the fraction of maxNodeReferences they use, in buckets of ten percent. Nodes that are
+	 * over full are counted in the last bucket.
+	 */
+	public List<Long> getFillHistogram() {
+		List<Long> histogram = new ArrayList<>(FILL_HISTOGRAM_BUCKETS);
+		for (long count : fillHistogram) {
+			histogram.add(count);
+		}
+		return histogram;
+	}
+
+	public List<Double> getOverlapPerLevel() {
+		return new ArrayList<>(overlapPerLevel.subList(0, getHeight()));
+	}
+
+	public double getOverlap() {
+		double overlap = 0.0;
+		for (double levelOverlap : overlapPerLevel) {
+			overlap += levelOverlap;
+		}
+		return overlap;
+	}
+
+	/**
+	 * Mean over all index nodes with a non zero area of the part of the node not covered by its children.
+	 */
+	public double getDeadSpaceRatio() {
+		return deadSpaceNodes == 0 ? 0.0 : deadSpaceSum / deadSpaceNodes;
+	}
+
+	/**
+	 * Longest side divided by shortest side of the leaf envelopes, leaving out leaves that are flat in some dimension.
+	 */
+	public double getMinLeafAspectRatio() {
+		return aspectRatioLeaves == 0 ? 0.0 : minAspectRatio;
+	}
+
+	public double getMaxLeafAspectRatio() {
+		return maxAspectRatio;
+	}
+
+	public double getMeanLeafAspectRatio() {
+		return aspectRatioLeaves == 0 ? 0.0 : aspectRatioSum / aspectRatioLeaves;
+	}
+
+	public long getDegenerateLeafCount() {
+		return degenerateLeaves;
+	}
+
+	/**
+	 * Expected number of index nodes read by a window query of the size given to getStatistics.
+	 */
+	public double getPagesPerQuery() {
+		return pagesPerQuery;
+	}
+}
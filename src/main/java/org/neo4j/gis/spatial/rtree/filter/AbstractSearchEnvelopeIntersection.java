@@ -52,10 +52,48 @@ public abstract class AbstractSearchEnvelopeIntersection implements SearchFilter
 		return false;
 	}
 	
+	@Override
+	public boolean needsToVisit(double[] bbox) {
+		return intersects(bbox);
+	}
+
+	@Override
+	public final boolean geometryMatches(Node geomNode, double[] bbox) {
+		if (decoder.decodeBBox(geomNode, bbox) && intersects(bbox)) {
+			return onBBoxIntersection(geomNode, bbox);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Same test as Envelope.intersects for a bounding box stored like those of the index nodes. A reference envelope
+	 * with fewer dimensions than the index does not restrict the others.
+	 */
+	protected boolean intersects(double[] bbox) {
+		return referenceEnvelope.intersects(bbox);
+	}
+
+	/**
+	 * Same test as Envelope.contains, for the reference envelope containing a bounding box stored like those of the
+	 * index nodes.
+	 */
+	protected boolean referenceContains(double[] bbox) {
+		return referenceEnvelope.covers(bbox);
+	}
+
 	@Override
 	public String toString() {
 		return "SearchEnvelopeIntersection[" + referenceEnvelope + "]";
 	}
 	
 	protected abstract boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope);
+
+	/**
+	 * Called instead of onEnvelopeIntersection by geometryMatches(Node, double[]). Subclasses that can decide on the
+	 * bounding box, or that do not need it, should override this and not create the Envelope.
+	 */
+	protected boolean onBBoxIntersection(Node geomNode, double[] bbox) {
+		return onEnvelopeIntersection(geomNode, Envelope.fromBBox(bbox));
+	}
 }
\ No newline at end of file
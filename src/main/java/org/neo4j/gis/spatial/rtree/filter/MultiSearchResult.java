@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree.filter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * A geometry node found by a search with several filters, together with the positions in the list of filters of
+ * those it matched.
+ */
+public class MultiSearchResult {
+	public final Node node;
+	public final BitSet filters;
+
+	public MultiSearchResult(Node node, BitSet filters) {
+		this.node = node;
+		this.filters = filters;
+	}
+
+	public List<Integer> getFilterIndexes() {
+		List<Integer> indexes = new ArrayList<>(filters.cardinality());
+		for (int i = filters.nextSetBit(0); i >= 0; i = filters.nextSetBit(i + 1)) {
+			indexes.add(i);
+		}
+		return indexes;
+	}
+}
@@ -34,4 +34,14 @@ public class SearchAll implements SearchFilter {
 		return true;
 	}
 
+	@Override
+	public boolean needsToVisit(double[] bbox) {
+		return true;
+	}
+
+	@Override
+	public boolean geometryMatches(Node geomNode, double[] bbox) {
+		return true;
+	}
+
 }
\ No newline at end of file
@@ -38,4 +38,9 @@ public class SearchCoveredByEnvelope extends AbstractSearchEnvelopeIntersection
 	    return referenceEnvelope.contains(geomEnvelope);
 	}
 
+	@Override
+	protected boolean onBBoxIntersection(Node geomNode, double[] bbox) {
+		return referenceContains(bbox);
+	}
+
 }
\ No newline at end of file
@@ -34,4 +34,18 @@ public class SearchEqualEnvelopes extends AbstractSearchEnvelopeIntersection {
 		return referenceEnvelope.contains(geomEnvelope) && geomEnvelope.contains(referenceEnvelope);
 	}
 
+	@Override
+	protected boolean onBBoxIntersection(Node geomNode, double[] bbox) {
+		int dimension = referenceEnvelope.getDimension();
+		if (bbox.length != 2 * dimension) {
+			return false;
+		}
+		for (int i = 0; i < dimension; i++) {
+			if (bbox[i] != referenceEnvelope.getMin(i) || bbox[dimension + i] != referenceEnvelope.getMax(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
\ No newline at end of file
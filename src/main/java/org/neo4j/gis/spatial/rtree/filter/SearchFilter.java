@@ -27,5 +27,23 @@ public interface SearchFilter {
 	boolean needsToVisit(Envelope envelope);
 	
 	boolean geometryMatches(Node geomNode);
+
+	/**
+	 * Same as needsToVisit(Envelope), for a bounding box stored like those of the index nodes: the minimums and then
+	 * the maximums of each dimension, so xmin, ymin, xmax, ymax in 2D. The RTreeIndex calls this for every index
+	 * node, so filters that only compare envelopes should override it and not create an Envelope.
+	 */
+	default boolean needsToVisit(double[] bbox) {
+		return needsToVisit(bbox == null ? null : Envelope.fromBBox(bbox));
+	}
+
+	/**
+	 * Same as geometryMatches(Node), with a scratch array sized for a bounding box of the index the filter may decode
+	 * the bounding box of the geometry into instead of creating an Envelope. The caller reuses the array for the next
+	 * geometry.
+	 */
+	default boolean geometryMatches(Node geomNode, double[] bbox) {
+		return geometryMatches(geomNode);
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+/**
+ * Runs a cleanup before the database shuts down. Static state kept per database, like caches and registries, uses it
+ * to drop its entry for that database, since such entries usually reach the database again through the layers and
+ * indexes they hold, and would otherwise keep it from being garbage collected.
+ */
+public class ShutdownHandler implements KernelEventHandler {
+
+	private final Runnable cleanup;
+
+	private ShutdownHandler(Runnable cleanup) {
+		this.cleanup = cleanup;
+	}
+
+	public static void onShutdown(GraphDatabaseService database, Runnable cleanup) {
+		database.registerKernelEventHandler(new ShutdownHandler(cleanup));
+	}
+
+	@Override
+	public void beforeShutdown() {
+		cleanup.run();
+	}
+
+	@Override
+	public void kernelPanic(ErrorState error) {
+	}
+
+	@Override
+	public Object getResource() {
+		return null;
+	}
+
+	@Override
+	public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+		return ExecutionOrder.DOESNT_MATTER;
+	}
+}
@@ -60,6 +60,55 @@ public class LayersTest extends Neo4jTestCase
         assertNull( spatialService.getLayer( layer.getName() ) );
     }
 
+    @Test
+    public void testLayerRegistry()
+    {
+        SpatialDatabaseService spatialService = new SpatialDatabaseService( graphDb() );
+        spatialService.createWKBLayer( "registered" );
+        Layer layer = spatialService.getLayer( "registered" );
+        assertSame( "Lookups on the same database should share the layer", layer,
+                new SpatialDatabaseService( graphDb() ).getLayer( "registered" ) );
+
+        DynamicLayer dynamicLayer = spatialService.asDynamicLayer( layer );
+        Layer dynamic = spatialService.getLayer( "registered" );
+        assertTrue( "Should see the new layer class", dynamic instanceof DynamicLayer );
+        assertNotSame( layer, dynamic );
+
+        dynamicLayer.addCQLDynamicLayerOnGeometryType( Constants.GTYPE_POINT );
+        String configName = "CQL:" + SpatialDatabaseService.convertGeometryTypeToName( Constants.GTYPE_POINT );
+        Layer config = spatialService.getLayer( configName );
+        assertTrue( "Should find the new dynamic layer config", config instanceof DynamicLayerConfig );
+        assertSame( config, spatialService.getLayer( configName ) );
+
+        try ( Transaction tx = graphDb().beginTx() )
+        {
+            // a property layers are built from, but not on a layer node
+            graphDb().createNode().setProperty( Constants.PROP_LAYER, "other" );
+            tx.success();
+        }
+        assertSame( "Other nodes should not clear the registry", config, spatialService.getLayer( configName ) );
+
+        try ( Transaction tx = graphDb().beginTx() )
+        {
+            dynamic.getLayerNode().setProperty( Constants.PROP_LAYER, "renamed" );
+            tx.success();
+        }
+        assertNull( spatialService.getLayer( "registered" ) );
+        assertNotNull( spatialService.getLayer( "renamed" ) );
+
+        try ( Transaction tx = graphDb().beginTx() )
+        {
+            spatialService.createWKBLayer( "uncommitted" );
+            assertNotNull( spatialService.getLayer( "uncommitted" ) );
+            tx.failure();
+        }
+        assertNull( spatialService.getLayer( "uncommitted" ) );
+
+        spatialService.createLayer( "ordered", WKBGeometryEncoder.class, OrderedEditableLayer.class );
+        assertNotSame( "Layers keeping per transaction state should not be shared",
+                spatialService.getLayer( "ordered" ), spatialService.getLayer( "ordered" ) );
+    }
+
     @Test
     public void testPointLayerWithRTree() {
         testPointLayer(LayerRTreeIndex.class);
@@ -12,7 +12,11 @@ import org.neo4j.gis.spatial.pipes.GeoPipeline;
 import org.neo4j.gis.spatial.procedures.SpatialProcedures;
 import org.neo4j.gis.spatial.rtree.*;
 import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchAll;
+import org.neo4j.gis.spatial.rtree.filter.SearchCoveredByEnvelope;
 import org.neo4j.graphdb.*;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.helpers.collection.Iterators;
 import org.neo4j.test.TestGraphDatabaseFactory;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -25,6 +29,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.*;
@@ -461,6 +466,11 @@ public class RTreeBulkInsertTest {
         insertManyNodesIndividually(RTreeIndex.GREENES_SPLIT, 5000, 10, testConfigs.get("very_small"));
     }
 
+    @Test
+    public void shouldInsertManyNodesIndividuallyRStarSplit_very_small_10() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("very_small"));
+    }
+
     @Test
     public void shouldInsertManyNodesInBulkWithQuadraticSplit_very_small_10() throws FactoryException, IOException {
         insertManyNodesInBulk(RTreeIndex.QUADRATIC_SPLIT, 5000, 10, testConfigs.get("very_small"));
@@ -471,6 +481,11 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 10, testConfigs.get("very_small"));
     }
 
+    @Test
+    public void shouldInsertManyNodesInBulkWithRStarSplit_very_small_10() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("very_small"));
+    }
+
     /*
      * Small model 250*250 nodes
      */
@@ -1082,6 +1097,661 @@ public class RTreeBulkInsertTest {
         }
     }
 
+    @Test
+    public void shouldBuildBalancedTreeWithSortTileRecursiveBulkLoad() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        for (int i : new int[]{1, 69, 70, 71, 300, 4900, 5000}) {
+            try (Transaction tx = db.beginTx()) {
+                RTreeIndex rtree = new RTreeIndex();
+                rtree.init(db, db.createNode(), encoder);
+                rtree.configure(map(RTreeIndex.KEY_BULK_LOAD, RTreeIndex.STR_BULK_LOAD));
+                rtree.add(createPoints(encoder, random, i));
+
+                Map<Long, Long> results = new RTreeTestUtils(rtree).get_height_map(db, rtree.getIndexRoot());
+                assertEquals("Expected all leaves at the same depth", 1, results.size());
+                assertEquals(i, results.values().iterator().next().intValue());
+                assertEquals(i, rtree.searchIndex(new SearchAll()).count());
+                tx.success();
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindSameNodesWithParallelSearch() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            rtree.add(createPoints(encoder, random, 5000));
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            SearchCoveredByEnvelope filter = new SearchCoveredByEnvelope(encoder, new Envelope(10.0, 70.0, 20.0, 80.0));
+            Set<Node> expected = new HashSet<>();
+            rtree.searchIndex(filter).forEach(expected::add);
+            rtree.configure(map(RTreeIndex.KEY_SEARCH_PARALLELISM, 4));
+            List<Node> actual = new ArrayList<>();
+            rtree.searchIndex(filter).forEach(actual::add);
+            assertTrue("Expected the window to match many points", expected.size() > 1000);
+            // the parallel search returns each node once, in no particular order
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected, new HashSet<>(actual));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldKeepPackedChildEnvelopesConsistentWithChildren() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            rtree.configure(map(RTreeIndex.KEY_PACKED_CHILD_ENVELOPES, true));
+            tx.success();
+        }
+        for (int i = 0; i < 10; i++) {
+            try (Transaction tx = db.beginTx()) {
+                for (Node n : createPoints(encoder, random, 200)) {
+                    rtree.add(n);
+                }
+                tx.success();
+            }
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            int packedNodes = 0;
+            for (Node indexNode : rtree.getAllIndexInternalNodes()) {
+                if (indexNode.hasProperty(RTreeIndex.INDEX_PROP_CHILD_IDS)) {
+                    packedNodes++;
+                    long[] childIds = (long[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_IDS);
+                    double[] childBBoxes = (double[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_BBOXES);
+                    Map<Long, double[]> expected = new HashMap<>();
+                    for (Relationship rel : indexNode.getRelationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)) {
+                        expected.put(rel.getEndNode().getId(), (double[]) rel.getEndNode().getProperty(RTreeIndex.INDEX_PROP_BBOX));
+                    }
+                    assertEquals(expected.size(), childIds.length);
+                    for (int i = 0; i < childIds.length; i++) {
+                        assertArrayEquals(expected.get(childIds[i]), Arrays.copyOfRange(childBBoxes, i * 4, i * 4 + 4), 0.0);
+                    }
+                }
+            }
+            assertThat("Expected packed children on the upper levels", packedNodes, greaterThan(0));
+            assertEquals(2000, rtree.searchIndex(new SearchAll()).count());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotPackChildEnvelopesWhenSearching() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            for (Node n : createPoints(encoder, random, 1000)) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // the tree was built without the packed arrays, so none of its index nodes has them yet
+            rtree.configure(map(RTreeIndex.KEY_PACKED_CHILD_ENVELOPES, true));
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(1000, rtree.searchIndex(new SearchAll()).count());
+            for (Node indexNode : rtree.getAllIndexInternalNodes()) {
+                assertFalse("Expected searches to read the children from the relationships", indexNode.hasProperty(RTreeIndex.INDEX_PROP_CHILD_IDS));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldMaintainChildCountsThroughInsertsAndRemovals() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        List<Node> coords;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            coords = createPoints(encoder, random, 1000);
+            for (Node n : coords) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : coords.subList(0, 600)) {
+                rtree.remove(n.getId(), false, true);
+            }
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            for (Node indexNode : rtree.getAllIndexInternalNodes()) {
+                if (indexNode.hasProperty(RTreeIndex.INDEX_PROP_CHILD_COUNT)) {
+                    int children = 0;
+                    for (Relationship ignored : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                        children++;
+                    }
+                    assertEquals("Child count of " + indexNode, children, indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_COUNT));
+                }
+            }
+            assertEquals(400, rtree.searchIndex(new SearchAll()).count());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldCleanUpAfterFailedRebuildAndKeepOldTreeUntilDeleted() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        Node layerNode;
+        List<Node> coords;
+        try (Transaction tx = db.beginTx()) {
+            layerNode = db.createNode();
+            rtree = createIndex(layerNode, encoder);
+            coords = createPoints(encoder, random, 1000);
+            for (Node n : coords) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+
+        // fail after a few batches of the new tree have been committed
+        try {
+            rtree.rebuild(100, new NullListener() {
+                private int batches = 0;
+
+                @Override
+                public void worked(int workedSinceLastNotification) {
+                    if (++batches == 3) {
+                        throw new IllegalStateException("Interrupted");
+                    }
+                }
+            });
+            fail("Expected the rebuild to be interrupted");
+        } catch (IllegalStateException e) {
+            assertEquals("Interrupted", e.getMessage());
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(1000, rtree.searchIndex(new SearchAll()).count());
+            // a geometry node referenced by the partial tree can still be removed
+            rtree.remove(coords.get(0).getId(), false, true);
+            rtree.add(coords.get(0));
+            tx.success();
+        }
+
+        assertEquals(1000, rtree.rebuild(100, new NullListener()));
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(1000, rtree.searchIndex(new SearchAll()).count());
+            assertEquals(1, Iterables.count(layerNode.getRelationships(RTreeRelationshipTypes.RTREE_DETACHED, Direction.OUTGOING)));
+            tx.success();
+        }
+        rtree.deleteDetachedTrees(new NullListener(), 100);
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(layerNode.hasRelationship(RTreeRelationshipTypes.RTREE_DETACHED, Direction.OUTGOING));
+            for (Node n : coords) {
+                assertEquals(1, Iterables.count(n.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING)));
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldInsertFromConcurrentTransactions() throws Exception {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Node layerNode;
+        try (Transaction tx = db.beginTx()) {
+            layerNode = db.createNode();
+            createIndex(layerNode, encoder);
+            tx.success();
+        }
+
+        int threads = 4;
+        int transactions = 10;
+        int perTransaction = 50;
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            writers.add(new Thread(() -> {
+                try {
+                    RTreeIndex rtree;
+                    try (Transaction tx = db.beginTx()) {
+                        rtree = createIndex(layerNode, encoder);
+                        rtree.configure(map(RTreeIndex.KEY_CONCURRENT_INSERT, true));
+                        tx.success();
+                    }
+                    for (int i = 0; i < transactions; i++) {
+                        List<double[]> points = new ArrayList<>();
+                        for (int j = 0; j < perTransaction; j++) {
+                            points.add(new double[]{random.nextDouble() * 90.0, random.nextDouble() * 90.0});
+                        }
+                        while (true) {
+                            try (Transaction tx = db.beginTx()) {
+                                for (double[] point : points) {
+                                    rtree.add(createPoint(encoder, point[0], point[1]));
+                                }
+                                tx.success();
+                                break;
+                            } catch (TransientFailureException e) {
+                                // a deadlock with a splitting writer, retry the whole transaction as a client would
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+
+        try (Transaction tx = db.beginTx()) {
+            RTreeIndex rtree = createIndex(layerNode, encoder);
+            assertEquals(threads * transactions * perTransaction, rtree.searchIndex(new SearchAll()).count());
+            assertGeometryCounts(rtree);
+            for (Node indexNode : rtree.getAllIndexInternalNodes()) {
+                Envelope envelope = rtree.getIndexNodeEnvelope(indexNode);
+                for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                    assertTrue("Index node " + indexNode + " should cover its children", envelope.contains(rtree.getIndexNodeEnvelope(rel.getEndNode())));
+                }
+                for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                    assertTrue("Index node " + indexNode + " should cover its geometries", envelope.contains(encoder.decodeEnvelope(rel.getEndNode())));
+                }
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldNotBeEmptyWithGeometriesOnlyInWriteBuffer() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            rtree.configure(map(RTreeIndex.KEY_WRITE_BUFFER_SIZE, 100));
+            assertTrue(rtree.isEmpty());
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : createPoints(encoder, random, 5)) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(rtree.isEmpty());
+            assertEquals(5, rtree.count());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldFindGeometriesInWriteBufferAndTree() throws InterruptedException {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        List<Node> coords;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            rtree.configure(map(RTreeIndex.KEY_WRITE_BUFFER_SIZE, 100));
+            tx.success();
+        }
+        // enough to fill the buffer, which is flushed in the background once this commits
+        try (Transaction tx = db.beginTx()) {
+            coords = createPoints(encoder, random, 1000);
+            for (Node n : coords) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+        long deadline = System.currentTimeMillis() + 60000;
+        while (true) {
+            try (Transaction tx = db.beginTx()) {
+                boolean flushed = coords.get(coords.size() - 1).hasRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
+                tx.success();
+                if (flushed) {
+                    break;
+                }
+            }
+            assertTrue("Expected the full buffer to be flushed after the commit", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // not enough to fill the buffer again
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : createPoints(encoder, random, 50)) {
+                rtree.add(n);
+                coords.add(n);
+            }
+            tx.success();
+        }
+
+        Envelope window = new Envelope(10.0, 70.0, 20.0, 80.0);
+        try (Transaction tx = db.beginTx()) {
+            // the last 50 are still in the buffer
+            Node last = coords.get(coords.size() - 1);
+            assertFalse(last.hasRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING));
+            assertTrue(rtree.isNodeIndexed(last.getId()));
+            assertEquals(1050, rtree.count());
+            assertEquals(1050, rtree.searchIndex(new SearchAll()).count());
+            Set<Node> expected = coords.stream().filter(n -> window.contains(encoder.decodeEnvelope(n))).collect(Collectors.toSet());
+            Set<Node> actual = new HashSet<>();
+            rtree.searchIndex(new SearchCoveredByEnvelope(encoder, window)).forEach(actual::add);
+            assertEquals(expected, actual);
+
+            rtree.remove(last.getId(), false, true);
+            assertFalse(rtree.isNodeIndexed(last.getId()));
+            tx.success();
+        }
+
+        assertEquals(49, rtree.flushWriteBuffer());
+        assertEquals(0, rtree.flushWriteBuffer());
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(coords.get(coords.size() - 2).hasRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING));
+            assertEquals(1049, rtree.count());
+            assertEquals(1049, rtree.searchIndex(new SearchAll()).count());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldCountGeometriesInWindowAndGrid() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        List<Node> coords;
+        try (Transaction tx = db.beginTx()) {
+            rtree = createIndex(db.createNode(), encoder);
+            coords = createPoints(encoder, random, 1000);
+            for (Node n : coords) {
+                rtree.add(n);
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            for (int j = 0; j < 100; j++) {
+                rtree.remove(coords.remove(random.nextInt(coords.size())).getId(), false, true);
+            }
+            List<Node> added = createPoints(encoder, random, 200);
+            rtree.add(added);
+            coords.addAll(added);
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(rtree.getIndexRoot().hasProperty(RTreeIndex.INDEX_PROP_GEOMETRY_COUNT));
+            assertGeometryCounts(rtree);
+
+            Envelope window = new Envelope(10.0, 70.0, 20.0, 80.0);
+            long expected = coords.stream().filter(n -> window.contains(encoder.decodeEnvelope(n))).count();
+            assertEquals(expected, rtree.count(window, new SearchCoveredByEnvelope(encoder, window)));
+
+            long[][] grid = rtree.countGrid(window, 4, 3, cell -> new SearchCoveredByEnvelope(encoder, cell));
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 4; column++) {
+                    Envelope cell = new Envelope(10.0 + column * 15.0, 25.0 + column * 15.0, 20.0 + row * 20.0, 40.0 + row * 20.0);
+                    long inCell = coords.stream().filter(n -> cell.contains(encoder.decodeEnvelope(n))).count();
+                    assertEquals("Count of cell " + column + "," + row, inCell, grid[row][column]);
+                }
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldIndexEnvelopesWithMoreDimensions() {
+        EnvelopeDecoder decoder = new EnvelopeDecoderFromDoubleArray("bbox");
+        for (String splitMode : new String[]{RTreeIndex.GREENES_SPLIT, RTreeIndex.QUADRATIC_SPLIT, RTreeIndex.RSTAR_SPLIT}) {
+            for (int dimensions = 3; dimensions <= 4; dimensions++) {
+                Random random = new Random();
+                random.setSeed(42);
+                RTreeIndex rtree;
+                List<Node> boxes = new ArrayList<>();
+                try (Transaction tx = db.beginTx()) {
+                    rtree = createIndex(db.createNode(), decoder);
+                    rtree.configure(map(RTreeIndex.KEY_DIMENSIONS, dimensions, RTreeIndex.KEY_SPLIT, splitMode,
+                            RTreeIndex.KEY_PACKED_CHILD_ENVELOPES, true));
+                    for (int j = 0; j < 500; j++) {
+                        double[] bbox = new double[2 * dimensions];
+                        for (int i = 0; i < dimensions; i++) {
+                            bbox[i] = random.nextDouble() * 90.0;
+                            bbox[dimensions + i] = bbox[i] + random.nextDouble() * 5.0;
+                        }
+                        Node n = db.createNode();
+                        n.setProperty("bbox", bbox);
+                        rtree.add(n);
+                        boxes.add(n);
+                    }
+                    tx.success();
+                }
+
+                try (Transaction tx = db.beginTx()) {
+                    assertEquals(dimensions, rtree.getDimensions());
+                    assertEquals(dimensions, rtree.getBoundingBox().getDimension());
+                    assertEquals(500, rtree.count());
+                    assertGeometryCounts(rtree);
+
+                    double[] min = new double[dimensions];
+                    double[] max = new double[dimensions];
+                    Arrays.fill(min, 20.0);
+                    Arrays.fill(max, 70.0);
+                    Envelope volume = new Envelope(min, max);
+                    Set<Node> expected = boxes.stream().filter(n -> volume.contains(decoder.decodeEnvelope(n))).collect(Collectors.toSet());
+                    Set<Node> actual = new HashSet<>();
+                    rtree.searchIndex(new SearchCoveredByEnvelope(decoder, volume)).forEach(actual::add);
+                    assertFalse(expected.isEmpty());
+                    assertEquals(splitMode + " in " + dimensions + "D", expected, actual);
+
+                    // a 2D window does not restrict the other dimensions
+                    Envelope window = new Envelope(20.0, 70.0, 20.0, 70.0);
+                    long inWindow = boxes.stream().filter(n -> window.covers(decoder.decodeEnvelope(n).toBBox())).count();
+                    assertEquals(inWindow, rtree.searchIndex(new SearchCoveredByEnvelope(decoder, window)).count());
+                    assertEquals(inWindow, rtree.count(window, new SearchCoveredByEnvelope(decoder, window)));
+                    tx.success();
+                }
+
+                try (Transaction tx = db.beginTx()) {
+                    Node flat = db.createNode();
+                    flat.setProperty("bbox", new double[]{1.0, 1.0, 2.0, 2.0});
+                    rtree.add(flat);
+                    fail("Should not index a 2D envelope in a " + dimensions + "D index");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+                try {
+                    rtree.configure(map(RTreeIndex.KEY_DIMENSIONS, 2));
+                    fail("Should not change the dimensions of an index with geometries");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepGeometryCountInTransactions() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        Node layerNode;
+        try (Transaction tx = db.beginTx()) {
+            layerNode = db.createNode();
+            RTreeIndex rtree = createIndex(layerNode, encoder);
+            List<Node> coords = createPoints(encoder, random, 100);
+            for (Node n : coords) {
+                rtree.add(n);
+            }
+            for (int j = 0; j < 10; j++) {
+                rtree.remove(coords.get(j).getId(), false, true);
+            }
+            tx.success();
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            RTreeIndex rtree = createIndex(layerNode, encoder);
+            assertEquals(90, rtree.count());
+            rtree.add(createPoint(encoder, 1.0, 1.0));
+            assertEquals(91, rtree.count());
+            // rolled back
+        }
+
+        Node metadata;
+        try (Transaction tx = db.beginTx()) {
+            RTreeIndex rtree = createIndex(layerNode, encoder);
+            assertEquals(90, rtree.count());
+            // the stored count is trusted, until it is repaired
+            metadata = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+            metadata.setProperty("totalGeometryCount", 7);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            RTreeIndex rtree = createIndex(layerNode, encoder);
+            assertEquals(7, rtree.count());
+            assertEquals(90, rtree.recount());
+            assertEquals(90, rtree.count());
+
+            // indexes from before the count was maintained are counted once
+            metadata.setProperty("totalGeometryCount", 7);
+            metadata.removeProperty("totalGeometryCountMaintained");
+            rtree = createIndex(layerNode, encoder);
+            assertEquals(90, rtree.count());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRemoveAllInBatchesAndResumeAfterInterruption() {
+        GeometryEncoder encoder = new SimplePointEncoder();
+        Random random = new Random();
+        random.setSeed(42);
+
+        RTreeIndex rtree;
+        Node layerNode;
+        try (Transaction tx = db.beginTx()) {
+            layerNode = db.createNode();
+            rtree = createIndex(layerNode, encoder);
+            rtree.add(createPoints(encoder, random, 1000));
+            tx.success();
+        }
+
+        // fail after a few batches have been committed
+        Listener failing = new NullListener() {
+            private int batches = 0;
+
+            @Override
+            public void worked(int workedSinceLastNotification) {
+                if (++batches == 20) {
+                    throw new IllegalStateException("Interrupted");
+                }
+            }
+        };
+        try {
+            rtree.removeAll(true, failing, 100);
+            fail("Expected the removal to be interrupted");
+        } catch (IllegalStateException e) {
+            assertEquals("Interrupted", e.getMessage());
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(layerNode.hasRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING));
+            assertTrue(layerNode.hasRelationship(RTreeRelationshipTypes.RTREE_DETACHED, Direction.OUTGOING));
+            long remaining = Iterators.count(db.findNodes(Label.label("Coordinate")));
+            assertThat(remaining, greaterThan(0L));
+            assertThat(remaining, lessThan(1000L));
+            tx.success();
+        }
+
+        int[] worked = new int[1];
+        rtree.removeAll(true, new NullListener() {
+            @Override
+            public void worked(int workedSinceLastNotification) {
+                assertThat(workedSinceLastNotification, lessThanOrEqualTo(100));
+                worked[0] += workedSinceLastNotification;
+            }
+        }, 100);
+        try (Transaction tx = db.beginTx()) {
+            assertThat(worked[0], greaterThan(0));
+            assertEquals(0, Iterators.count(db.findNodes(Label.label("Coordinate"))));
+            assertFalse(layerNode.hasRelationship());
+            assertEquals(1, Iterables.count(db.getAllNodes()));
+            tx.success();
+        }
+    }
+
+    private RTreeIndex createIndex(Node layerNode, EnvelopeDecoder decoder) {
+        RTreeIndex rtree = new RTreeIndex();
+        rtree.init(db, layerNode, decoder, 10);
+        return rtree;
+    }
+
+    private List<Node> createPoints(GeometryEncoder encoder, Random random, int count) {
+        List<Node> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(createPoint(encoder, random.nextDouble() * 90.0, random.nextDouble() * 90.0));
+        }
+        return points;
+    }
+
+    private Node createPoint(GeometryEncoder encoder, double x, double y) {
+        Node n = db.createNode(Label.label("Coordinate"));
+        n.setProperty(SimplePointEncoder.DEFAULT_X, x);
+        n.setProperty(SimplePointEncoder.DEFAULT_Y, y);
+        encoder.encodeGeometry(encoder.decodeGeometry(n), n);
+        return n;
+    }
+
+    private static void assertGeometryCounts(RTreeIndex rtree) {
+        for (Node indexNode : rtree.getAllIndexInternalNodes()) {
+            if (indexNode.hasProperty(RTreeIndex.INDEX_PROP_GEOMETRY_COUNT)) {
+                assertEquals("Geometry count of " + indexNode, countGeometriesBelow(indexNode), indexNode.getProperty(RTreeIndex.INDEX_PROP_GEOMETRY_COUNT));
+            }
+        }
+    }
+
+    private static long countGeometriesBelow(Node indexNode) {
+        long count = 0;
+        for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+            count++;
+        }
+        for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            count += countGeometriesBelow(rel.getEndNode());
+        }
+        return count;
+    }
+
     @Ignore
     public void shouldPerformRTreeBulkInsertion() throws Exception {
         // Use these two lines if you want to examine the output.
@@ -19,9 +19,22 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import org.junit.Test;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SimplePointLayer;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.mockito.Mockito.when;
 
 public class LayerGeohashPointIndexTest extends LayerIndexTestBase {
@@ -40,4 +53,38 @@ public class LayerGeohashPointIndexTest extends LayerIndexTestBase {
         when(layer.getIndex()).thenReturn(index);
         return index;
     }
+
+    @Test
+    public void shouldCoverSmallWindowAcrossCellBoundariesWithFewFineCells() {
+        LayerGeohashPointIndex index = (LayerGeohashPointIndex) mockLayerIndex();
+        // crosses the equator and the prime meridian, which have no common geohash prefix
+        String[] cells = index.coveringCells(new Envelope(-0.0001, 0.0001, -0.0001, 0.0001));
+        assertThat("Should cover the window", cells, notNullValue());
+        assertThat("Should use few cells", cells.length, lessThanOrEqualTo(index.getMaxCells()));
+        for (String cell : cells) {
+            assertThat("Should use fine cells", cell.length(), greaterThanOrEqualTo(6));
+        }
+    }
+
+    @Test
+    public void shouldFindPointsInWindowAcrossCellBoundaries() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        Set<Coordinate> expected = new HashSet<>();
+        for (double x : new double[]{-0.5, -0.05, 0.05, 0.5}) {
+            for (double y : new double[]{-0.5, -0.05, 0.05, 0.5}) {
+                Coordinate coordinate = new Coordinate(x, y);
+                layer.add(coordinate);
+                if (Math.abs(x) < 0.1 && Math.abs(y) < 0.1) {
+                    expected.add(coordinate);
+                }
+            }
+        }
+        try (Transaction tx = graph.beginTx()) {
+            Set<Coordinate> found = new HashSet<>();
+            layer.getIndex().searchIndex(new SearchIntersectWindow(layer, new com.vividsolutions.jts.geom.Envelope(-0.1, 0.1, -0.1, 0.1)))
+                    .forEach(node -> found.add(encoder.decodeGeometry(node).getCoordinate()));
+            assertThat("Should find the points in the window", found, equalTo(expected));
+            tx.success();
+        }
+    }
 }
@@ -19,10 +19,28 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
 import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.SimplePointLayer;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.SpatialRelationshipTypes;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.Mockito.when;
+import static org.neo4j.helpers.collection.MapUtil.map;
 
 public class LayerHilbertPointIndexTest extends LayerIndexTestBase {
 
@@ -40,4 +58,116 @@ public class LayerHilbertPointIndexTest extends LayerIndexTestBase {
         when(layer.getIndex()).thenReturn(index);
         return index;
     }
+
+    @Test
+    public void shouldFindPointsWithConfiguredCurveDepthAndMergedRanges() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        layer.getIndex().configure(map(LayerSpaceFillingCurvePointIndex.KEY_MAX_LEVELS, 16, LayerSpaceFillingCurvePointIndex.KEY_MAX_RANGES, 2));
+        layer = (SimplePointLayer) spatial.getLayer("test");
+        assertThat("Should store the curve depth", ((LayerSpaceFillingCurvePointIndex) layer.getIndex()).getMaxLevels(), equalTo(16));
+        Envelope window = new Envelope(10.3, 12.7, 50.1, 51.9);
+        Set<Coordinate> expected = new HashSet<>();
+        for (int x = 0; x < 20; x++) {
+            for (int y = 0; y < 20; y++) {
+                Coordinate coordinate = new Coordinate(8.0 + x * 0.3, 48.0 + y * 0.3);
+                layer.add(coordinate);
+                if (window.contains(coordinate)) {
+                    expected.add(coordinate);
+                }
+            }
+        }
+        try (Transaction tx = graph.beginTx()) {
+            Set<Coordinate> found = new HashSet<>();
+            layer.getIndex().searchIndex(new SearchIntersectWindow(layer, window))
+                    .forEach(node -> found.add(encoder.decodeGeometry(node).getCoordinate()));
+            assertThat("Should find the points in the window", found, equalTo(expected));
+            tx.success();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotChangeCurveDepthOfNonEmptyIndex() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        layer.add(1.0, 1.0);
+        layer.getIndex().configure(map(LayerSpaceFillingCurvePointIndex.KEY_MAX_LEVELS, 16));
+    }
+
+    @Test
+    public void shouldCountNodesMovedAfterIndexingOnce() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        SpatialIndexWriter index = (SpatialIndexWriter) layer.getIndex();
+        SpatialDatabaseRecord record = layer.add(1.0, 2.0);
+        layer.add(3.0, 5.0);
+        try (Transaction tx = graph.beginTx()) {
+            Node geomNode = graph.getNodeById(record.getNodeId());
+            index.add(geomNode);
+            encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(7.0, 8.0)), geomNode);
+            tx.success();
+        }
+        assertThat("Should not count the node added again", index.count(), equalTo(2));
+        assertThat("Should know the moved node", index.isNodeIndexed(record.getNodeId()), is(true));
+        try (Transaction tx = graph.beginTx()) {
+            index.add(graph.getNodeById(record.getNodeId()));
+            tx.success();
+        }
+        assertThat("Should not count the moved node added again", index.count(), equalTo(2));
+        index.remove(record.getNodeId(), false, true);
+        assertThat("Should not count the removed node", index.count(), equalTo(1));
+        assertThat("Should know the removed node", index.isNodeIndexed(record.getNodeId()), is(false));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should not find the removed node", layer.getIndex().searchIndex(
+                    new SearchIntersectWindow(layer, new Envelope(6.0, 9.0, 7.0, 9.0))).count(), equalTo(0));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldFindNodesIndexedBeforeTheirIdWas() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        SpatialIndexWriter index = (SpatialIndexWriter) layer.getIndex();
+        SpatialDatabaseRecord record = layer.add(1.0, 2.0);
+        try (Transaction tx = graph.beginTx()) {
+            // as if indexed by an older version, which only indexed the curve value
+            Node geomNode = graph.getNodeById(record.getNodeId());
+            graph.index().forNodes("_Spatial_hilbert_Index_test").remove(geomNode, "nodeId");
+            layer.getLayerNode().getSingleRelationship(SpatialRelationshipTypes.INDEX_METADATA, Direction.OUTGOING)
+                    .getEndNode().removeProperty("nodeIdsIndexed");
+            tx.success();
+        }
+        assertThat("Should find the node by its value", index.isNodeIndexed(record.getNodeId()), is(true));
+        try (Transaction tx = graph.beginTx()) {
+            index.add(graph.getNodeById(record.getNodeId()));
+            tx.success();
+        }
+        assertThat("Should not count the node added again", index.count(), equalTo(1));
+    }
+
+    @Test
+    public void shouldAddNodesInSeveralBatchesOutsideOfATransaction() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        LayerSpaceFillingCurvePointIndex index = (LayerSpaceFillingCurvePointIndex) layer.getIndex();
+        SpatialDatabaseRecord indexed = layer.add(0.0, 0.0);
+        List<Node> geomNodes = new ArrayList<>();
+        try (Transaction tx = graph.beginTx()) {
+            geomNodes.add(graph.getNodeById(indexed.getNodeId()));
+            for (int x = 1; x < 10; x++) {
+                for (int y = 0; y < 10; y++) {
+                    Node geomNode = graph.createNode();
+                    encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(x, y)), geomNode);
+                    geomNodes.add(geomNode);
+                }
+            }
+            tx.success();
+        }
+        index.add(geomNodes, 7);
+        assertThat("Should count every node once", index.count(), equalTo(91));
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should find the points in the window", index.searchIndex(
+                    new SearchIntersectWindow(layer, new Envelope(-0.5, 2.5, -0.5, 0.5))).count(), equalTo(3));
+            for (Node geomNode : geomNodes) {
+                assertThat("Should know the added nodes", index.isNodeIndexed(geomNode.getId()), is(true));
+            }
+            tx.success();
+        }
+    }
 }
@@ -166,6 +166,60 @@ public abstract class LayerIndexTestBase {
         }
     }
 
+    @Test
+    public void shouldKeepCountBoundingBoxAndMembership() {
+        SimplePointLayer layer = spatial.createSimplePointLayer("test", getIndexClass());
+        LayerIndexReader index = layer.getIndex();
+        assertThat("Should start empty", index.isEmpty(), is(true));
+        SpatialDatabaseRecord first = layer.add(1.0, 2.0);
+        SpatialDatabaseRecord second = layer.add(3.0, 5.0);
+        Node unindexed;
+        try (Transaction tx = graph.beginTx()) {
+            unindexed = graph.createNode();
+            tx.success();
+        }
+        assertThat("Should count the points", index.count(), equalTo(2));
+        assertThat("Should not be empty", index.isEmpty(), is(false));
+        org.neo4j.gis.spatial.rtree.Envelope bbox = index.getBoundingBox();
+        assertThat("Should include the points", bbox.getMin(0), equalTo(1.0));
+        assertThat("Should include the points", bbox.getMin(1), equalTo(2.0));
+        assertThat("Should include the points", bbox.getMax(0), equalTo(3.0));
+        assertThat("Should include the points", bbox.getMax(1), equalTo(5.0));
+        assertThat("Should know indexed nodes", index.isNodeIndexed(first.getNodeId()), is(true));
+        assertThat("Should know other nodes", index.isNodeIndexed(unindexed.getId()), is(false));
+        ((SpatialIndexWriter) index).remove(first.getNodeId(), false, true);
+        assertThat("Should count the remaining point", index.count(), equalTo(1));
+        assertThat("Should know removed nodes", index.isNodeIndexed(first.getNodeId()), is(false));
+        assertThat("Should know indexed nodes", index.isNodeIndexed(second.getNodeId()), is(true));
+    }
+
+    @Test
+    public void shouldFindNodesAddedTogetherToIndex() {
+        SpatialIndexWriter index = mockLayerIndex();
+        List<Node> geomNodes = new ArrayList<>();
+        try (Transaction tx = graph.beginTx()) {
+            for (int x = 0; x < 10; x++) {
+                for (int y = 0; y < 10; y++) {
+                    Node geomNode = graph.createNode();
+                    encoder.encodeGeometry(geometryFactory.createPoint(new Coordinate(x, y)), geomNode);
+                    geomNodes.add(geomNode);
+                }
+            }
+            tx.success();
+        }
+        try (Transaction tx = graph.beginTx()) {
+            index.add(geomNodes);
+            tx.success();
+        }
+        try (Transaction tx = graph.beginTx()) {
+            SearchResults results = index.searchIndex(new SearchIntersectWindow(((LayerIndexReader) index).getLayer(), new Envelope(2.5, 4.5, 2.5, 4.5)));
+            assertThat("Should find the points in the window", results.count(), equalTo(4));
+            assertThat("Should count all points", index.count(), equalTo(100));
+            assertThat("Should know the added nodes", index.isNodeIndexed(geomNodes.get(42).getId()), is(true));
+            tx.success();
+        }
+    }
+
     private Polygon makeTestPolygonInSquare(GeometryFactory geometryFactory, int length) {
         if (length < 4) {
             throw new IllegalArgumentException("Cannot create letter C in square smaller than 4x4");
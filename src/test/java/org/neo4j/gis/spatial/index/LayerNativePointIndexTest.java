@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2010-2017 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.index;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.gis.spatial.SimplePointLayer;
+import org.neo4j.gis.spatial.SpatialDatabaseRecord;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.encoders.NativePointEncoder;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
+import org.neo4j.gis.spatial.rtree.NullListener;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.spatial.Point;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LayerNativePointIndexTest {
+
+    private GraphDatabaseService graph;
+    private SpatialDatabaseService spatial;
+
+    @Before
+    public void setup() {
+        graph = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        spatial = new SpatialDatabaseService(graph);
+    }
+
+    @After
+    public void tearDown() {
+        if (graph != null) {
+            graph.shutdown();
+            graph = null;
+            spatial = null;
+        }
+    }
+
+    private Set<Long> ids(Iterable<Node> nodes) {
+        return StreamSupport.stream(nodes.spliterator(), false).map(Node::getId).collect(Collectors.toSet());
+    }
+
+    @Test
+    public void shouldStoreNativePointsInSchemaIndexedProperty() {
+        SimplePointLayer layer = spatial.createNativePointLayer("test", "position", null);
+        SpatialDatabaseRecord added = layer.add(12.5, 55.5);
+        LayerNativePointIndex index = (LayerNativePointIndex) layer.getIndex();
+        try (Transaction tx = graph.beginTx()) {
+            Object value = added.getGeomNode().getProperty("position");
+            assertThat("Should store a native point", value, instanceOf(Point.class));
+            assertThat("Should store the coordinates", ((Point) value).getCoordinate().getCoordinate().get(0), equalTo(12.5));
+            assertThat("Should not store a bbox", added.getGeomNode().hasProperty("bbox"), is(false));
+            IndexDefinition schemaIndex = Iterables.single(graph.schema().getIndexes(index.getLabel()));
+            assertThat("Should index the point property", Iterables.single(schemaIndex.getPropertyKeys()), equalTo("position"));
+            assertThat("Should find the layer again", spatial.getLayer("test").getGeometryEncoder(), instanceOf(NativePointEncoder.class));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldCreateSchemaIndexWithTheLayer() {
+        SimplePointLayer layer = spatial.createNativePointLayer("test", null, null);
+        try (Transaction tx = graph.beginTx()) {
+            assertThat("Should create the schema index before anything is added",
+                    LayerNativePointIndex.hasSchemaIndex(graph, "test", NativePointEncoder.DEFAULT_LOCATION), is(true));
+            tx.success();
+        }
+        // adding in the same transaction as other writes must not need a schema change
+        try (Transaction tx = graph.beginTx()) {
+            graph.createNode();
+            layer.add(1.0, 2.0);
+            tx.success();
+        }
+        assertThat("Should count the point", layer.getIndex().count(), equalTo(1));
+    }
+
+    @Test
+    public void shouldFindPointsInWindowAndWithinDistance() {
+        SimplePointLayer layer = spatial.createNativePointLayer("test", null, null);
+        SpatialDatabaseRecord inside = layer.add(1.0, 1.0);
+        SpatialDatabaseRecord near = layer.add(1.5, 1.0);
+        SpatialDatabaseRecord outside = layer.add(10.0, 10.0);
+        LayerNativePointIndex index = (LayerNativePointIndex) layer.getIndex();
+        try (Transaction tx = graph.beginTx()) {
+            Set<Long> found = ids(index.searchIndex(new SearchIntersectWindow(layer, new Envelope(0.0, 1.2, 0.0, 2.0))));
+            assertThat("Should find the point in the window", found, hasItem(inside.getNodeId()));
+            assertThat("Should only find the point in the window", found.size(), equalTo(1));
+
+            List<GeoPipeFlow> closest = layer.findClosestPointsTo(new Coordinate(1.0, 1.0), 100.0);
+            assertThat("Should find the two close points", closest.size(), equalTo(2));
+
+            found = ids(index.searchWithinDistance(new Coordinate(1.0, 1.0), 100.0));
+            assertThat("Should find the points within 100km", found.size(), equalTo(2));
+            assertThat("Should find the near point", found, hasItem(near.getNodeId()));
+            assertThat("Should not find the far point", found, not(hasItem(outside.getNodeId())));
+
+            assertThat("Should count all points", index.count(), equalTo(3));
+            org.neo4j.gis.spatial.rtree.Envelope bbox = index.getBoundingBox();
+            assertThat("Should find the bounding box", bbox.getMin(0), equalTo(1.0));
+            assertThat("Should find the bounding box", bbox.getMax(1), equalTo(10.0));
+            assertThat("Should know the indexed node", index.isNodeIndexed(outside.getNodeId()), is(true));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void shouldRemoveAllInBatches() {
+        SimplePointLayer layer = spatial.createNativePointLayer("test", null, "cartesian");
+        for (int i = 0; i < 25; i++) {
+            layer.add(i, i);
+        }
+        LayerNativePointIndex index = (LayerNativePointIndex) layer.getIndex();
+        index.removeAll(true, new NullListener(), 10);
+        assertThat("Should remove all points", index.isEmpty(), is(true));
+        assertThat("Should have no bounding box", index.getBoundingBox(), is(nullValue()));
+    }
+}
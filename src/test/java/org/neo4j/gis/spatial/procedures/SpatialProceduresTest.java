@@ -29,6 +29,7 @@ import org.neo4j.kernel.impl.proc.Procedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Consumer;
@@ -633,6 +634,93 @@ public class SpatialProceduresTest {
         );
     }
 
+    @Test
+    public void find_k_nearest_nodes_in_the_spatial_layer() throws Exception {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("UNWIND range(1,100) as i CREATE (n:Node {lat:60.0+toFloat(i)/100.0,lon:15.0+toFloat(i)/100.0}) WITH collect(n) as nodes CALL spatial.addNodes('geom',nodes) YIELD count RETURN count");
+        testResult(db, "CALL spatial.knn('geom',{lon:15.0,lat:60.0},3) YIELD node, distance RETURN node.lat as lat, distance", res -> {
+                    double previous = 0.0;
+                    for (double lat : new double[]{60.01, 60.02, 60.03}) {
+                        assertTrue(res.hasNext());
+                        Map<String, Object> row = res.next();
+                        assertEquals(lat, (Double) row.get("lat"), 0.000001);
+                        double distance = (Double) row.get("distance");
+                        assertTrue("Expected distances in ascending order", distance >= previous);
+                        previous = distance;
+                    }
+                    assertFalse(res.hasNext());
+                }
+        );
+        testCallFails(db, "CALL spatial.knn('geom',{lon:15.0,lat:60.0},0)", null, "k must be at least 1");
+        testCallFails(db, "CALL spatial.knn('geom',{lon:15.0,lat:60.0},-1)", null, "k must be at least 1");
+    }
+
+    @Test
+    public void optimize_the_index_of_a_layer() throws Exception {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("UNWIND range(1,1000) as i CREATE (n:Node {lat:60.0+toFloat(i)/1000.0,lon:15.0+toFloat(i % 37)/100.0}) WITH collect(n) as nodes CALL spatial.addNodes('geom',nodes) YIELD count RETURN count");
+        testCall(db, "CALL spatial.optimizeIndex('geom')", r -> assertEquals(1000L, r.get("count")));
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:16.0,lat:61.0})", null, 1000);
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:15.0,lat:60.0},{lon:16.0,lat:60.4995})", null, 499);
+        testCall(db, "MATCH (l {layer:'geom'})-[:RTREE_ROOT]->(root) RETURN count(root) as roots", r -> assertEquals(1L, r.get("roots")));
+        // the old tree is kept for queries still using it, until the next rebuild
+        testCall(db, "MATCH (l {layer:'geom'})-[:RTREE_DETACHED]->(old) RETURN count(old) as old", r -> assertEquals(1L, r.get("old")));
+        testCall(db, "CALL spatial.optimizeIndex('geom')", r -> assertEquals(1000L, r.get("count")));
+        testCall(db, "MATCH (l {layer:'geom'})-[:RTREE_DETACHED]->(old) RETURN count(old) as old", r -> assertEquals(1L, r.get("old")));
+    }
+
+    @Test
+    public void index_stats_of_a_layer() throws Exception {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("UNWIND range(1,1000) as i CREATE (n:Node {lat:60.0+toFloat(i)/1000.0,lon:15.0+toFloat(i % 37)/100.0}) WITH collect(n) as nodes CALL spatial.addNodes('geom',nodes) YIELD count RETURN count");
+        testCall(db, "CALL spatial.indexStats('geom')", r -> {
+            long height = (Long) r.get("height");
+            assertTrue("Expected more than one level for 1000 points", height > 1);
+            List<?> nodesPerLevel = (List<?>) r.get("nodesPerLevel");
+            assertEquals(height, nodesPerLevel.size());
+            assertEquals(1L, nodesPerLevel.get(0));
+            assertEquals(10, ((List<?>) r.get("fillHistogram")).size());
+            double pagesPerQuery = (Double) r.get("pagesPerQuery");
+            assertTrue("Expected the root and part of the leaves to be read", pagesPerQuery > 1.0);
+        });
+    }
+
+    @Test
+    public void join_two_layers() throws Exception {
+        execute("CALL spatial.addWKTLayer('zones','wkt')");
+        execute("CALL spatial.addPointLayerXY('points','lon','lat')");
+        execute("UNWIND range(0,9) as i CALL spatial.addWKT('zones','POLYGON((' + i + ' 0, ' + (i+1) + ' 0, ' + (i+1) + ' 1, ' + i + ' 1, ' + i + ' 0))') YIELD node RETURN count(node)");
+        execute("UNWIND range(1,200) as i CREATE (n:Node {lon:toFloat(i)/20.0-0.025,lat:toFloat(i % 3)/4.0+0.25}) WITH collect(n) as nodes CALL spatial.addNodes('points',nodes) YIELD count RETURN count");
+        testCallCount(db, "CALL spatial.join('zones','points','contains')", null, 200);
+        testCallCount(db, "CALL spatial.join('points','zones','within')", null, 200);
+        testResult(db, "CALL spatial.join('zones','points') YIELD left, right WITH left, count(right) as points RETURN min(points) as min, max(points) as max", res -> {
+            Map<String, Object> row = res.next();
+            assertEquals(20L, row.get("min"));
+            assertEquals(20L, row.get("max"));
+        });
+    }
+
+    @Test
+    public void find_geometries_in_several_bounding_boxes() throws Exception {
+        execute("CALL spatial.addPointLayerXY('points','lon','lat')");
+        execute("UNWIND range(1,100) as i CREATE (n:Node {lon:toFloat(i)/10.0,lat:0.5}) WITH collect(n) as nodes CALL spatial.addNodes('points',nodes) YIELD count RETURN count");
+        String windows = "[{min:{lon:0.0,lat:0.0},max:{lon:2.05,lat:1.0}},{min:{lon:1.95,lat:0.0},max:{lon:4.05,lat:1.0}},{min:{lon:20.0,lat:0.0},max:{lon:21.0,lat:1.0}}]";
+        testCallCount(db, "CALL spatial.bboxMulti('points'," + windows + ")", null, 40);
+        testResult(db, "CALL spatial.bboxMulti('points'," + windows + ") YIELD node, windows UNWIND windows as window RETURN window, count(node) as count ORDER BY window", res -> {
+            Map<String, Object> row = res.next();
+            assertEquals(0L, row.get("window"));
+            assertEquals(20L, row.get("count"));
+            row = res.next();
+            assertEquals(1L, row.get("window"));
+            assertEquals(21L, row.get("count"));
+            assertFalse(res.hasNext());
+        });
+        testCall(db, "CALL spatial.bboxMulti('points'," + windows + ") YIELD node, windows WITH node, windows WHERE size(windows) > 1 RETURN node.lon as lon, windows", r -> {
+            assertEquals(2.0, (Double) r.get("lon"), 0.0001);
+            assertEquals(Arrays.asList(0L, 1L), r.get("windows"));
+        });
+    }
+
     @Test
     public void add_many_nodes_to_the_spatial_layer_using_addNodes() throws Exception {
         // Playing with this number in both tests leads to rough benchmarking of the addNode/addNodes comparison
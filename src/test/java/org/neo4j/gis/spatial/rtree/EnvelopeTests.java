@@ -24,6 +24,7 @@ import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class EnvelopeTests {
@@ -95,6 +96,18 @@ public class EnvelopeTests {
         testOverlaps(left, new Envelope(0.5, 1.5, 0.0, 1.0), true, 0.5, 0.5, 1.5);        // overlaps right half
     }
 
+    @Test
+    public void shouldTestBoundingBoxesWithOtherDimensions() {
+        double[] bbox2D = new double[]{0.0, 0.0, 10.0, 10.0};
+        Envelope window3D = new Envelope(new double[]{5.0, 5.0, 100.0}, new double[]{20.0, 20.0, 200.0});
+        assertTrue("Expected the extra dimension of the window to be ignored", window3D.intersects(bbox2D));
+        assertFalse("Expected the extra dimension of the window to be ignored", window3D.covers(bbox2D));
+        Envelope window2D = new Envelope(new double[]{-1.0, -1.0}, new double[]{11.0, 11.0});
+        double[] bbox3D = new double[]{0.0, 0.0, 100.0, 10.0, 10.0, 200.0};
+        assertTrue("Expected the window to be unbounded in the extra dimension", window2D.intersects(bbox3D));
+        assertTrue("Expected the window to be unbounded in the extra dimension", window2D.covers(bbox3D));
+    }
+
     private void makeAndTestEnvelope(double[] min, double[] max, double[] width) {
         Envelope env = new Envelope(min, max);
         assertThat("Expected min-x to be correct", env.getMinX(), equalTo(min[0]));
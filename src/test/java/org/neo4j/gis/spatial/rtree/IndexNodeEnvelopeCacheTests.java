@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology," Network Engine for Objects in Lund
+ * AB [http://neotechnology.com]
+ * <p>
+ * This file is part of Neo4j Spatial.
+ * <p>
+ * Neo4j is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexNodeEnvelopeCacheTests {
+
+    @Test
+    public void shouldCacheAndForgetEnvelopes() {
+        IndexNodeEnvelopeCache cache = new IndexNodeEnvelopeCache(100000);
+        int count = 5000;
+        for (long id = 0; id < count; id++) {
+            cache.put(id, bbox(id), cache.version());
+        }
+        assertThat(cache.size(), equalTo(count));
+        // remove every third entry, the others must still be found after the backward shifts
+        for (long id = 0; id < count; id += 3) {
+            cache.remove(id);
+        }
+        double[] found = new double[4];
+        for (long id = 0; id < count; id++) {
+            if (id % 3 == 0) {
+                assertFalse("Expected " + id + " to be removed", cache.get(id, found));
+            } else {
+                assertTrue("Expected " + id + " to be cached", cache.get(id, found));
+                assertArrayEquals(bbox(id), found, 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void shouldStayWithinMaxSize() {
+        IndexNodeEnvelopeCache cache = new IndexNodeEnvelopeCache(100);
+        for (long id = 0; id < 1000; id++) {
+            cache.put(id, bbox(id), cache.version());
+            assertTrue(cache.size() <= 100);
+        }
+        cache.setMaxSize(0);
+        cache.put(1, bbox(1), cache.version());
+        assertFalse(cache.get(1, new double[4]));
+    }
+
+    @Test
+    public void shouldNotCacheEnvelopesReadBeforeAnInvalidation() {
+        IndexNodeEnvelopeCache cache = new IndexNodeEnvelopeCache(100);
+        long version = cache.version();
+        cache.remove(2);
+        cache.put(1, bbox(1), version);
+        assertFalse(cache.get(1, new double[4]));
+        cache.put(1, bbox(1), cache.version());
+        assertTrue(cache.get(1, new double[4]));
+    }
+
+    @Test
+    public void shouldNotCacheEnvelopesOnAThreadThatWroteToTheTree() throws InterruptedException {
+        IndexNodeEnvelopeCache cache = new IndexNodeEnvelopeCache(100);
+        // the writing mark lasts until the transaction of the thread ends, so keep it off the test thread
+        Thread writer = new Thread(() -> {
+            cache.invalidate(2);
+            cache.put(1, bbox(1), cache.version());
+        });
+        writer.start();
+        writer.join();
+        assertFalse(cache.get(1, new double[4]));
+        cache.put(1, bbox(1), cache.version());
+        assertTrue(cache.get(1, new double[4]));
+    }
+
+    private static double[] bbox(long id) {
+        return new double[]{id, id + 0.5, id + 1, id + 1.5};
+    }
+}